@@ -0,0 +1,92 @@
+package experiment.vector.benchmarks;
+
+import experiment.vector.AggregateVector;
+import experiment.vector.IntVector;
+import experiment.vector.Vector;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * `Vector` with 32- and 64-way tries (`shift` 5 and 6): `get` and `update` latency, and the memory used by a vector of
+ * `size` elements, which is the `gc.alloc.rate.norm` of `build` (as `tabulate` allocates only the vector).
+ * `IntVector` and `AggregateVector`, whose leaves and blocks have the same size, are measured with `getInt` and
+ * `aggregate` (of ranges of up to `size / 2` elements).
+ *
+ * The branching factor is fixed for the whole JVM when `Vector` is loaded, so each value of `shift` is set (as a
+ * system property) before the first use of `Vector` in its own fork; the benchmarks can't run without forking.
+ * 16-way tries (`shift` 4) aren't measured, as `Vector` rejects that shift (see `Vector.SHIFT`).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class BranchingBenchmark {
+  static final int OPS = 1024;
+
+  @Param({"5", "6"})
+  public int shift;
+
+  @Param({"1000", "100000", "10000000"})
+  public int size;
+
+  private Vector<Object> vector;
+  private IntVector ints;
+  private AggregateVector<Integer, Long> sums;
+  private int[] indices;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    System.setProperty("experiment.vector.shift", Integer.toString(shift));
+    if(Vector.branchingFactor() != 1 << shift) {
+      throw new IllegalStateException("Vector was loaded with another shift, run the benchmark in a fork");
+    }
+    vector = build();
+    var elements = new int[size];
+    var aggregate = AggregateVector.<Integer, Long>empty(0L, Integer::longValue, Long::sum);
+    for(int i = 0; i < size; i++) {
+      elements[i] = i;
+      aggregate = aggregate.push_right(i);
+    }
+    ints = IntVector.of(elements);
+    sums = aggregate;
+    indices = Impl.indices(new Random(100), OPS, size);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public void get(Blackhole bh) {
+    for(int i : indices) { bh.consume(vector.get(i)); }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public void update(Blackhole bh) {
+    for(int i : indices) { bh.consume(vector.update(i, Impl.ELEMENT)); }
+  }
+
+  /** iterates over all elements (so the time is per vector, not per element) */
+  @Benchmark
+  public void iterate(Blackhole bh) {
+    for(var e : vector) { bh.consume(e); }
+  }
+
+  @Benchmark
+  public Vector<Object> build() { return Vector.tabulate(size, i -> Impl.ELEMENT); }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public void getInt(Blackhole bh) {
+    for(int i : indices) { bh.consume(ints.get(i)); }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public void aggregate(Blackhole bh) {
+    for(int i : indices) { bh.consume(sums.aggregate(i / 2, i)); }
+  }
+}
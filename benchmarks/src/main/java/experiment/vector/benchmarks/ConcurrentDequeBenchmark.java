@@ -0,0 +1,58 @@
+package experiment.vector.benchmarks;
+
+import experiment.vector.ConcurrentVectorDeque;
+import experiment.vector.Vector;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A queue shared by 8 threads (half of them pushing, half of them popping): a `Vector` in an `AtomicReference`
+ * updated in CAS loops, and `ConcurrentVectorDeque`, which combines the operations of contending threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class ConcurrentDequeBenchmark {
+  private final AtomicReference<Vector<Object>> reference = new AtomicReference<>(Vector.of());
+  private final ConcurrentVectorDeque<Object> deque = new ConcurrentVectorDeque<>();
+
+  @State(Scope.Thread)
+  public static class Role {
+    boolean producer;
+
+    @Setup(Level.Trial)
+    public void setup(ConcurrentDequeBenchmark b) {
+      synchronized(b) { producer = b.producers++ % 2 == 0; }
+    }
+  }
+  private int producers = 0;
+
+  @Benchmark
+  public Object cas_loop(Role role) {
+    while(true) {
+      var v = reference.get();
+      if(role.producer) {
+        if(reference.compareAndSet(v, v.push_right(Impl.ELEMENT))) { return null; }
+      } else {
+        if(v.size() == 0) { return null; }
+        if(reference.compareAndSet(v, v.pop_left())) { return v.get(0); }
+      }
+    }
+  }
+
+  @Benchmark
+  public Object combining(Role role) {
+    if(role.producer) {
+      deque.push_right(Impl.ELEMENT);
+      return null;
+    } else {
+      return deque.pop_left();
+    }
+  }
+}
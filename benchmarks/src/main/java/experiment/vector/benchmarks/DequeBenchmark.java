@@ -0,0 +1,51 @@
+package experiment.vector.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Operations at the left end of a vector of `size` elements, and a queue-like mix of `push_right` and `pop_left`.
+ * Clojure's `PersistentVector` doesn't support them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class DequeBenchmark {
+  static final int OPS = 1024;
+
+  @Param({"Vector", "Scala"})
+  public String impl;
+
+  @Param({"10", "1000", "100000", "10000000", "100000000"})
+  public int size;
+
+  private Impl ops;
+  private Object vector;
+  private boolean[] pushes;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    ops = Impl.of(impl);
+    vector = ops.build(size);
+    pushes = Impl.pushes(new Random(100), OPS, size);
+  }
+
+  @Benchmark
+  public Object push_left() { return ops.push_left(vector, Impl.ELEMENT); }
+
+  @Benchmark
+  public Object pop_left() { return ops.pop_left(vector); }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public Object queue() {
+    var v = vector;
+    for(boolean push : pushes) { v = push ? ops.push_right(v, Impl.ELEMENT) : ops.pop_left(v); }
+    return v;
+  }
+}
@@ -0,0 +1,47 @@
+package experiment.vector.benchmarks;
+
+import experiment.vector.Vector;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * `hashCode` of versions derived by one `update` from a vector of 4M elements that was already hashed, so only the
+ * changed path is hashed and the hashes of the other nodes are read from the cache that all vectors share: by one
+ * thread, and by 8 threads at once (as when vectors are the keys of a map shared by many threads).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class HashBenchmark {
+  static final int SIZE = 1 << 22;
+
+  private Vector<Object> vector;
+
+  @State(Scope.Thread)
+  public static class Indices {
+    final Random random = new Random(Thread.currentThread().getId());
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    vector = Vector.<Object>tabulate(SIZE, i -> i);
+    vector.hashCode();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public int derived(Indices indices) {
+    return vector.update(indices.random.nextInt(SIZE), Impl.ELEMENT).hashCode();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public int derived_8_threads(Indices indices) {
+    return vector.update(indices.random.nextInt(SIZE), Impl.ELEMENT).hashCode();
+  }
+}
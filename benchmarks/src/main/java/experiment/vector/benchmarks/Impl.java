@@ -0,0 +1,101 @@
+package experiment.vector.benchmarks;
+
+import clojure.lang.PersistentVector;
+import experiment.vector.Vector;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+
+/** The operations of the benchmarked persistent vectors, so that all benchmarks can run against each of them. */
+abstract class Impl {
+  static final Object ELEMENT = "a";
+
+  abstract Object empty();
+  abstract Object get(Object v, int i);
+  abstract Object update(Object v, int i, Object e);
+  abstract Object push_right(Object v, Object e);
+  abstract Object push_left(Object v, Object e);
+  abstract Object pop_right(Object v);
+  abstract Object pop_left(Object v);
+  abstract int size(Object v);
+  abstract void iterate(Object v, Blackhole bh);
+
+  static Impl of(String name) {
+    return switch(name) {
+      case "Vector" -> VECTOR;
+      case "Clojure" -> CLOJURE;
+      case "Scala" -> SCALA;
+      default -> throw new IllegalArgumentException("unknown implementation " + name);
+    };
+  }
+
+  Object build(int size) {
+    var v = empty();
+    for(int i = 0; i < size; i++) { v = push_right(v, ELEMENT); }
+    if(size(v) != size) { throw new IllegalStateException("wrong size"); }
+    return v;
+  }
+
+  /** `n` random indices of a vector of the given size */
+  static int[] indices(Random random, int n, int size) {
+    var indices = new int[n];
+    for(int i = 0; i < n; i++) { indices[i] = random.nextInt(size); }
+    return indices;
+  }
+
+  /** a random sequence of `n` pushes (`true`) and pops that never pops more than `size` elements */
+  static boolean[] pushes(Random random, int n, int size) {
+    var pushes = new boolean[n];
+    for(int i = 0; i < n; i++) {
+      pushes[i] = size == 0 || random.nextBoolean();
+      size += pushes[i] ? 1 : -1;
+    }
+    return pushes;
+  }
+
+  @SuppressWarnings("unchecked")
+  static final Impl VECTOR = new Impl() {
+    Object empty() { return Vector.empty; }
+    Object get(Object v, int i) { return ((Vector<Object>) v).get(i); }
+    Object update(Object v, int i, Object e) { return ((Vector<Object>) v).update(i, e); }
+    Object push_right(Object v, Object e) { return ((Vector<Object>) v).push_right(e); }
+    Object push_left(Object v, Object e) { return ((Vector<Object>) v).push_left(e); }
+    Object pop_right(Object v) { return ((Vector<Object>) v).pop_right(); }
+    Object pop_left(Object v) { return ((Vector<Object>) v).pop_left(); }
+    int size(Object v) { return ((Vector<Object>) v).size(); }
+    void iterate(Object v, Blackhole bh) {
+      for(var e : (Vector<Object>) v) { bh.consume(e); }
+    }
+  };
+
+  static final Impl CLOJURE = new Impl() {
+    Object empty() { return PersistentVector.EMPTY; }
+    Object get(Object v, int i) { return ((PersistentVector) v).nth(i); }
+    Object update(Object v, int i, Object e) { return ((PersistentVector) v).assocN(i, e); }
+    Object push_right(Object v, Object e) { return ((PersistentVector) v).cons(e); }
+    Object push_left(Object v, Object e) { throw new UnsupportedOperationException("push_left"); }
+    Object pop_right(Object v) { return ((PersistentVector) v).pop(); }
+    Object pop_left(Object v) { throw new UnsupportedOperationException("pop_left"); }
+    int size(Object v) { return ((PersistentVector) v).count(); }
+    void iterate(Object v, Blackhole bh) {
+      for(var e : (PersistentVector) v) { bh.consume(e); }
+    }
+  };
+
+  // `Vector`'s own `appended` etc. are ambiguous from Java, so they are called through `IndexedSeq`
+  @SuppressWarnings("unchecked")
+  static final Impl SCALA = new Impl() {
+    Object empty() { return scala.collection.immutable.Vector$.MODULE$.empty(); }
+    Object get(Object v, int i) { return ((scala.collection.immutable.Vector<Object>) v).apply(i); }
+    Object update(Object v, int i, Object e) { return ((scala.collection.immutable.IndexedSeq<Object>) v).updated(i, e); }
+    Object push_right(Object v, Object e) { return ((scala.collection.immutable.IndexedSeq<Object>) v).appended(e); }
+    Object push_left(Object v, Object e) { return ((scala.collection.immutable.IndexedSeq<Object>) v).prepended(e); }
+    Object pop_right(Object v) { return ((scala.collection.immutable.Vector<Object>) v).init(); }
+    Object pop_left(Object v) { return ((scala.collection.immutable.Vector<Object>) v).tail(); }
+    int size(Object v) { return ((scala.collection.immutable.Vector<Object>) v).length(); }
+    void iterate(Object v, Blackhole bh) {
+      var it = ((scala.collection.immutable.Vector<Object>) v).iterator();
+      while(it.hasNext()) { bh.consume(it.next()); }
+    }
+  };
+}
@@ -0,0 +1,67 @@
+package experiment.vector.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latency distribution (p50 ... p99.9, max) of single pushes and pops on a vector of about `size` elements, which
+ * keeps changing from one invocation to the next, so the rare operations that rebalance the halves are sampled too.
+ * `queue` moves all elements from the right to the left end (and so keeps emptying the left half), `deque` pushes and
+ * pops at random ends.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Thread)
+public class LatencyBenchmark {
+  static final int OPS = 1 << 16;
+
+  @Param({"Vector", "Scala"})
+  public String impl;
+
+  @Param({"1000", "100000", "10000000"})
+  public int size;
+
+  private Impl ops;
+  private Object vector;
+  private boolean[] pushes;       // returns to the original size after `OPS` operations
+  private boolean[] lefts;
+  private int i = 0;
+
+  @Setup(Level.Iteration)
+  public void setup() {
+    ops = Impl.of(impl);
+    vector = ops.build(size);
+    var random = new Random(101);
+    var half = Impl.pushes(random, OPS / 2, size);
+    pushes = new boolean[OPS];
+    lefts = new boolean[OPS];
+    for(int j = 0; j < OPS / 2; j++) {
+      pushes[j] = half[j];
+      pushes[OPS - 1 - j] = !half[j];
+    }
+    for(int j = 0; j < OPS; j++) { lefts[j] = random.nextBoolean(); }
+  }
+
+  @Benchmark
+  public Object queue() {
+    i++;
+    vector = (i & 1) == 0 ? ops.push_right(vector, Impl.ELEMENT) : ops.pop_left(vector);
+    return vector;
+  }
+
+  @Benchmark
+  public Object deque() {
+    int j = i++ & (OPS - 1);
+    if(pushes[j]) {
+      vector = lefts[j] ? ops.push_left(vector, Impl.ELEMENT) : ops.push_right(vector, Impl.ELEMENT);
+    } else {
+      vector = lefts[j] ? ops.pop_left(vector) : ops.pop_right(vector);
+    }
+    return vector;
+  }
+}
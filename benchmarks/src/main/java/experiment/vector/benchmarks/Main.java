@@ -0,0 +1,31 @@
+package experiment.vector.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like JMH's own `Main` (accepting the same arguments), but always with the GC profiler, which
+ * reports allocation rates, and with the results written as JSON (to `jmh-result.json`, unless `-rff` is given), so
+ * that the results of different versions can be compared.
+ */
+public class Main {
+  public static void main(String[] args) throws Exception {
+    var cli = new CommandLineOptions(args);
+    if(cli.shouldHelp()) {
+      cli.showHelp();
+      return;
+    }
+    var options = new OptionsBuilder().parent(cli).addProfiler(GCProfiler.class);
+    if(!cli.getResultFormat().hasValue()) { options.resultFormat(ResultFormatType.JSON); }
+    if(!cli.getResult().hasValue()) { options.result("jmh-result.json"); }
+    var runner = new Runner(options.build());
+    if(cli.shouldList()) {
+      runner.list();
+    } else {
+      runner.run();
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package experiment.vector.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Single operations on a vector of `size` elements, and a stack-like mix of `push_right` and `pop_right`. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class VectorBenchmark {
+  static final int OPS = 1024;
+
+  @Param({"Vector", "Clojure", "Scala"})
+  public String impl;
+
+  @Param({"10", "1000", "100000", "10000000", "100000000"})
+  public int size;
+
+  private Impl ops;
+  private Object vector;
+  private int[] indices;
+  private boolean[] pushes;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    var random = new Random(100);
+    ops = Impl.of(impl);
+    vector = ops.build(size);
+    indices = Impl.indices(random, OPS, size);
+    pushes = Impl.pushes(random, OPS, size);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public void get(Blackhole bh) {
+    for(int i : indices) { bh.consume(ops.get(vector, i)); }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public void update(Blackhole bh) {
+    for(int i : indices) { bh.consume(ops.update(vector, i, Impl.ELEMENT)); }
+  }
+
+  @Benchmark
+  public Object push_right() { return ops.push_right(vector, Impl.ELEMENT); }
+
+  @Benchmark
+  public Object pop_right() { return ops.pop_right(vector); }
+
+  /** iterates over all elements (so the time is per vector, not per element) */
+  @Benchmark
+  public void iterate(Blackhole bh) { ops.iterate(vector, bh); }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS)
+  public Object stack() {
+    var v = vector;
+    for(boolean push : pushes) { v = push ? ops.push_right(v, Impl.ELEMENT) : ops.pop_right(v); }
+    return v;
+  }
+}
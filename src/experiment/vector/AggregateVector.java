@@ -0,0 +1,192 @@
+package experiment.vector;
+
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * A vector that maintains aggregates of its elements under an associative `combine` operation (with an `identity`),
+ * such as sums, minimums or maximums, so that `aggregate(from, to)` takes `O(log n)` time.
+ *
+ * The elements are kept in a `Vector`, and the aggregates in one more `Vector` per level: the level `k` holds the
+ * aggregates of blocks of `SIZE^k` consecutive elements (of the part of the block that is in the vector). The blocks
+ * are aligned to absolute positions, which don't change when elements are pushed or popped at either end (the element
+ * `i` is at the position `base + i`), so each operation only updates the first or the last aggregate of each level.
+ * Levels are added while the highest one has more than `SIZE` aggregates.
+ */
+public final class AggregateVector<E, A> implements Iterable<E> {
+  private static final int SHIFT = Integer.numberOfTrailingZeros(Vector.branchingFactor());   // blocks like leaves
+  private static final int SIZE = 1 << SHIFT;
+
+  private record Monoid<E, A>(A identity, Function<? super E, ? extends A> measure, BinaryOperator<A> combine) {}
+
+  private final Monoid<E, A> monoid;
+  private final Vector<?>[] levels;     // `levels[0]` holds the elements, `levels[k]` the aggregates of the level `k`
+  private final long base;              // the position of the first element
+
+  private AggregateVector(Monoid<E, A> monoid, Vector<?>[] levels, long base) {
+    this.monoid = monoid;
+    this.levels = levels;
+    this.base = base;
+  }
+
+  /** An empty vector, whose elements are aggregated by `combine`-ing their `measure`s. */
+  public static <E, A> AggregateVector<E, A> empty(
+      A identity, Function<? super E, ? extends A> measure, BinaryOperator<A> combine
+  ) {
+    return new AggregateVector<>(new Monoid<>(identity, measure, combine), new Vector<?>[]{Vector.empty}, 0);
+  }
+
+  @SuppressWarnings("unchecked")
+  public Vector<E> elements() { return (Vector<E>) levels[0]; }
+
+  public int size() { return levels[0].size(); }
+
+  public E get(int i) { return elements().get(i); }
+
+  @Override
+  public Iterator<E> iterator() { return elements().iterator(); }
+
+  /** the aggregate of all elements */
+  public A aggregate() { return fold(levels, base, levels.length - 1, base, base + size()); }
+
+  /** the aggregate of the elements `from` (inclusive) to `to` (exclusive) */
+  public A aggregate(int from, int to) {
+    if(!(0 <= from && from <= to && to <= size())) {
+      throw new IndexOutOfBoundsException("aggregate(" + from + ", " + to + ") of size " + size());
+    }
+    return query(levels.length - 1, base + from, base + to);
+  }
+
+  /** the aggregate of the positions `from` to `to`, using the whole blocks of the level `k` and the levels below */
+  private A query(int k, long from, long to) {
+    if(from >= to) { return monoid.identity; }
+    if(k == 0) { return fold(levels, base, 0, from, to); }
+    int s = SHIFT * k;
+    long first = ((from + (1L << s) - 1) >> s) << s;      // the whole blocks of this level
+    long last = (to >> s) << s;
+    if(first >= last) { return query(k - 1, from, to); }
+    var combine = monoid.combine;
+    var blocks = fold(levels, base, k, first, last);
+    return combine.apply(combine.apply(query(k - 1, from, first), blocks), query(k - 1, last, to));
+  }
+
+  /** combines the elements or aggregates of the level `k` that cover the positions `from` to `to` */
+  @SuppressWarnings("unchecked")
+  private A fold(Vector<?>[] levels, long base, int k, long from, long to) {
+    if(from >= to) { return monoid.identity; }
+    int s = SHIFT * k;
+    long start = base >> s;
+    var result = (A[]) new Object[]{monoid.identity};
+    var monoid = this.monoid;
+    levels[k].forEachChunk((int) ((from >> s) - start), (int) (((to - 1) >> s) - start + 1), (leaf, i, j) -> {
+      var r = result[0];
+      for(; i < j; i++) { r = monoid.combine.apply(r, k == 0 ? monoid.measure.apply((E) leaf[i]) : (A) leaf[i]); }
+      result[0] = r;
+    });
+    return result[0];
+  }
+
+  /** the aggregate of the block of the level `k` containing the position `p`, restricted to `from` to `to` */
+  private A block(Vector<?>[] levels, long base, int k, long p, long from, long to) {
+    int s = SHIFT * k;
+    long start = (p >> s) << s;
+    return fold(levels, base, k - 1, Math.max(from, start), Math.min(to, start + (1L << s)));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <A> Vector<A> level(Vector<?>[] levels, int k) { return (Vector<A>) levels[k]; }
+
+  private static boolean starts_block(long p, int k) { return (p & ((1L << (SHIFT * k)) - 1)) == 0; }
+
+  public AggregateVector<E, A> update(int i, E element) {
+    if(!(0 <= i && i < size())) { throw new IndexOutOfBoundsException(i); }
+    var levels = this.levels.clone();
+    levels[0] = elements().update(i, element);
+    long p = base + i, end = base + size();
+    for(int k = 1; k < levels.length; k++) {
+      int s = SHIFT * k;
+      int j = (int) ((p >> s) - (base >> s));
+      levels[k] = level(levels, k).update(j, block(levels, base, k, p, base, end));
+    }
+    return new AggregateVector<>(monoid, levels, base);
+  }
+
+  public AggregateVector<E, A> push_right(E e) {
+    var levels = this.levels.clone();
+    levels[0] = elements().push_right(e);
+    long p = base + size();
+    A m = monoid.measure.apply(e);
+    for(int k = 1; k < levels.length; k++) {
+      Vector<A> level = level(levels, k);
+      int last = level.size() - 1;
+      levels[k] = starts_block(p, k)
+          ? level.push_right(m)
+          : level.update(last, monoid.combine.apply(level.get(last), m));
+    }
+    return grow(levels, base);
+  }
+
+  public AggregateVector<E, A> push_left(E e) {
+    var levels = this.levels.clone();
+    levels[0] = elements().push_left(e);
+    long p = base - 1;
+    A m = monoid.measure.apply(e);
+    for(int k = 1; k < levels.length; k++) {
+      Vector<A> level = level(levels, k);
+      levels[k] = starts_block(p + 1, k) ? level.push_left(m) : level.update(0, monoid.combine.apply(m, level.get(0)));
+    }
+    return grow(levels, p);
+  }
+
+  public AggregateVector<E, A> pop_right() {
+    if(size() == 0) { throw new IllegalStateException("empty vector"); }
+    var levels = this.levels.clone();
+    levels[0] = elements().pop_right();
+    long p = base + size() - 1;
+    for(int k = 1; k < levels.length; k++) {
+      Vector<A> level = level(levels, k);
+      levels[k] = starts_block(p, k)
+          ? level.pop_right()
+          : level.update(level.size() - 1, block(levels, base, k, p - 1, base, p));
+    }
+    return shrink(levels, base);
+  }
+
+  public AggregateVector<E, A> pop_left() {
+    if(size() == 0) { throw new IllegalStateException("empty vector"); }
+    var levels = this.levels.clone();
+    levels[0] = elements().pop_left();
+    long p = base + 1, end = base + size();
+    for(int k = 1; k < levels.length; k++) {
+      Vector<A> level = level(levels, k);
+      levels[k] = starts_block(p, k) ? level.pop_left() : level.update(0, block(levels, p, k, p, p, end));
+    }
+    return shrink(levels, p);
+  }
+
+  /** adds levels while the highest one has more than `SIZE` elements or aggregates */
+  private AggregateVector<E, A> grow(Vector<?>[] levels, long base) {
+    long end = base + levels[0].size();
+    while(levels[levels.length - 1].size() > SIZE) {
+      int k = levels.length;
+      var aggregates = new Object[(int) (((end - 1) >> (SHIFT * k)) - (base >> (SHIFT * k)) + 1)];
+      for(int j = 0; j < aggregates.length; j++) {
+        long p = ((base >> (SHIFT * k)) + j) << (SHIFT * k);
+        aggregates[j] = block(levels, base, k, p, base, end);
+      }
+      levels = Arrays.copyOf(levels, k + 1);
+      levels[k] = Vector.of(aggregates);
+    }
+    return new AggregateVector<>(monoid, levels, base);
+  }
+
+  /** removes the highest level while the one below doesn't need it */
+  private AggregateVector<E, A> shrink(Vector<?>[] levels, long base) {
+    int n = levels.length;
+    while(n > 1 && levels[n - 2].size() <= SIZE) { n--; }
+    return new AggregateVector<>(monoid, n == levels.length ? levels : Arrays.copyOf(levels, n), base);
+  }
+}
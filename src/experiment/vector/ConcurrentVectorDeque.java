@@ -0,0 +1,141 @@
+package experiment.vector;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe deque backed by a persistent `Vector`, using *flat combining*: each thread publishes its operation
+ * in one of the `slots`, and whichever thread becomes the combiner applies all published operations to the current
+ * vector and publishes the result with a single write. Contending threads thus wait for (at most) one combiner instead
+ * of repeatedly failing to CAS, and a push and a pop in the same batch just cancel out.
+ *
+ * `snapshot()` returns the current vector with a single volatile read; it is never affected by later operations.
+ */
+public final class ConcurrentVectorDeque<E> {
+  private static final int PUSH_LEFT = 0, PUSH_RIGHT = 1, POP_LEFT = 2, POP_RIGHT = 3;
+  private static final int CPUS = Runtime.getRuntime().availableProcessors();
+  private static final int SPINS = CPUS > 1 ? 64 : 0;    // then yield, so that a preempted combiner can finish
+
+  private static final class Request {
+    final int op;
+    final Object element;
+    Object result;
+    Throwable failure;          // thrown by the operation, rethrown by the thread that requested it
+    volatile boolean done;      // written (by the combiner) after `result` and after the new vector is published
+
+    Request(int op, Object element) {
+      this.op = op;
+      this.element = element;
+    }
+  }
+
+  private volatile Vector<E> vector;
+  private final AtomicBoolean combining = new AtomicBoolean();
+  private final AtomicReferenceArray<Request> slots;
+  private final LongAdder batches = new LongAdder();
+  private final LongAdder operations = new LongAdder();
+  private final LongAdder waits = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+
+  public ConcurrentVectorDeque() { this(Vector.of()); }
+
+  public ConcurrentVectorDeque(Vector<E> initial) {
+    vector = initial;
+    slots = new AtomicReferenceArray<>(Math.max(16, 2 * CPUS));
+  }
+
+  /** the current contents, in `O(1)` time */
+  public Vector<E> snapshot() { return vector; }
+  public int size() { return vector.size(); }
+
+  public void push_left(E e) { apply(PUSH_LEFT, e); }
+  public void push_right(E e) { apply(PUSH_RIGHT, e); }
+
+  /** removes and returns the first element, or `null` if the deque is empty */
+  public E pop_left() { return apply(POP_LEFT, null); }
+
+  /** removes and returns the last element, or `null` if the deque is empty */
+  public E pop_right() { return apply(POP_RIGHT, null); }
+
+  /** the number of batches applied by combiners */
+  public long batches() { return batches.sum(); }
+  /** the number of operations that took effect (pops of an empty deque and operations that failed don't count) */
+  public long operations() { return operations.sum(); }
+  /** the number of operations that had to wait for another thread to combine */
+  public long waits() { return waits.sum(); }
+  /** the number of times a thread found a slot taken and had to try another one */
+  public long retries() { return retries.sum(); }
+
+  @SuppressWarnings("unchecked")
+  private E apply(int op, E element) {
+    var request = new Request(op, element);
+    int n = slots.length();
+    int slot = ThreadLocalRandom.current().nextInt(n);
+    for(int tried = 0; !slots.compareAndSet(slot, null, request); tried++) {
+      retries.increment();
+      slot = slot + 1 == n ? 0 : slot + 1;
+      if(tried % n == n - 1 && !try_combine()) { Thread.yield(); }    // all slots are taken, help to empty them
+    }
+    for(int spins = 0; !request.done; spins++) {
+      if(!try_combine() && !request.done) {
+        if(spins == 0) { waits.increment(); }
+        if(spins < SPINS) { Thread.onSpinWait(); } else { Thread.yield(); }
+      }
+    }
+    if(request.failure instanceof RuntimeException e) { throw e; }
+    if(request.failure instanceof Error e) { throw e; }
+    return (E) request.result;
+  }
+
+  private boolean try_combine() {
+    if(combining.get() || !combining.compareAndSet(false, true)) { return false; }
+    try {
+      combine();
+    } finally {
+      combining.set(false);
+    }
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void combine() {
+    var v = vector;
+    var batch = new Request[slots.length()];
+    int k = 0, applied = 0;
+    for(int j = 0; j < slots.length(); j++) {
+      var request = slots.get(j);
+      if(request == null) { continue; }
+      slots.set(j, null);
+      batch[k++] = request;
+      try {       // a failed operation leaves `v` unchanged, and the other ones still take effect
+        switch(request.op) {
+          case PUSH_LEFT -> v = v.push_left((E) request.element);
+          case PUSH_RIGHT -> v = v.push_right((E) request.element);
+          case POP_LEFT -> {
+            if(v.size() == 0) { continue; }
+            var result = v.get(0);
+            v = v.pop_left();
+            request.result = result;
+          }
+          default -> {
+            if(v.size() == 0) { continue; }
+            var result = v.get(v.size() - 1);
+            v = v.pop_right();
+            request.result = result;
+          }
+        }
+        applied++;
+      } catch(Throwable e) {
+        request.failure = e;
+      }
+    }
+    if(k == 0) { return; }
+    vector = v;
+    for(int i = 0; i < k; i++) { batch[i].done = true; }
+    batches.increment();
+    operations.add(applied);
+  }
+}
@@ -0,0 +1,42 @@
+package experiment.vector;
+
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/** A vector of unboxed `double`s, in `double[]` leaves and tails (see `PrimitiveVector`). */
+public final class DoubleVector extends PrimitiveVector<double[], DoubleVector> {
+  private static final double[] EMPTY_ARRAY = new double[]{};
+
+  private DoubleVector(double[] left, Vector<double[]> leaves, double[] right) { super(left, leaves, right); }
+
+  @SuppressWarnings("unchecked")
+  public static final DoubleVector empty = new DoubleVector(EMPTY_ARRAY, (Vector<double[]>) Vector.empty, EMPTY_ARRAY);
+
+  DoubleVector make(double[] left, Vector<double[]> leaves, double[] right) {
+    return new DoubleVector(left, leaves, right);
+  }
+  double[] allocate(int length) { return length == 0 ? EMPTY_ARRAY : new double[length]; }
+
+  public static DoubleVector of(double... elements) { return empty.of(elements, elements.length); }
+
+  public double get(int i) { return array(i)[index(i)]; }
+
+  public DoubleVector update(int i, double element) { return update(i, (array, j) -> array[j] = element); }
+  public DoubleVector push_right(double e) { return push_right((array, j) -> array[j] = e); }
+  public DoubleVector push_left(double e) { return push_left((array, j) -> array[j] = e); }
+
+  public double[] toArray() { return elements(); }
+
+  /** Iterates over whole leaves, so that the elements are never boxed. */
+  public PrimitiveIterator.OfDouble iterator() {
+    final class Iterator extends Elements implements PrimitiveIterator.OfDouble {
+      @Override
+      public double nextDouble() {
+        if(!hasNext()) { throw new NoSuchElementException(); }
+        return current[i++];
+      }
+    }
+    return new Iterator();
+  }
+}
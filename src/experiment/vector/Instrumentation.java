@@ -0,0 +1,116 @@
+package experiment.vector;
+
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.AnnotationElement;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventFactory;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.ValueDescriptor;
+
+/**
+ * Optional instrumentation of `Vector`, enabled by starting the JVM with `-Dexperiment.vector.instrument=true`.
+ *
+ * When enabled, `Vector` counts the operations that modify it (pushes, pops and updates) and the arrays it allocates
+ * to copy nodes, leaves and tails (so `arrays() / operations()` is the average length of the copied paths), and emits
+ * JDK Flight Recorder events when a half changes its depth and when subtrees move between the halves. `ENABLED` is a
+ * constant, so when it is `false` the JIT compiler removes all the instrumentation from the code of `Vector`.
+ */
+public final class Instrumentation {
+  private Instrumentation() {}
+
+  static final boolean ENABLED = Boolean.getBoolean("experiment.vector.instrument");
+
+  private static final LongAdder OPERATIONS = new LongAdder();
+  private static final LongAdder ARRAYS = new LongAdder();
+  private static final LongAdder BYTES = new LongAdder();
+
+  public static boolean enabled() { return ENABLED; }
+
+  /** the number of pushes, pops and updates */
+  public static long operations() { return OPERATIONS.sum(); }
+  /** the number of arrays allocated to copy nodes, leaves and tails */
+  public static long arrays() { return ARRAYS.sum(); }
+  /** the estimated size of those arrays (as in `Vector.stats()`) */
+  public static long bytes() { return BYTES.sum(); }
+
+  public static void reset() {
+    OPERATIONS.reset();
+    ARRAYS.reset();
+    BYTES.reset();
+  }
+
+  static void operation() { OPERATIONS.increment(); }
+
+  static void copied(int length) {
+    ARRAYS.increment();
+    BYTES.add((16 + 4L * length + 7) & ~7);
+  }
+
+  static void depth(boolean left, int from, int to) {
+    Events.emit(Events.DEPTH_CHANGE, left ? "left" : "right", from, to);
+  }
+
+  static void move(String kind, boolean left, int elements) {
+    Events.emit(Events.SUBTREE_MOVE, kind, left ? "left" : "right", elements);
+  }
+
+  /**
+   * The JFR events, created with `EventFactory` and used through method handles, as `javac --release` can't compile
+   * code that extends or calls `jdk.jfr.Event` (its superclass is missing from the symbols of the release).
+   */
+  private static final class Events {
+    static final EventFactory DEPTH_CHANGE = event(
+        "experiment.vector.DepthChange", "Vector Depth Change", "A half of a vector gained or lost a level",
+        new ValueDescriptor(String.class, "half"), new ValueDescriptor(int.class, "from"),
+        new ValueDescriptor(int.class, "to")
+    );
+    static final EventFactory SUBTREE_MOVE = event(
+        "experiment.vector.SubtreeMove", "Vector Subtree Move",
+        "Elements moved from one half of a vector to the other one (or to the middle) to keep them balanced",
+        new ValueDescriptor(String.class, "kind"),     // "move", "split", "steal" or "middle"
+        new ValueDescriptor(String.class, "from"), new ValueDescriptor(int.class, "elements")
+    );
+    private static final MethodHandle SET, COMMIT;
+
+    static {
+      try {
+        var lookup = MethodHandles.publicLookup();
+        SET = lookup.findVirtual(Event.class, "set", MethodType.methodType(void.class, int.class, Object.class));
+        COMMIT = lookup.findVirtual(Event.class, "commit", MethodType.methodType(void.class));
+      } catch(ReflectiveOperationException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+
+    private static EventFactory event(String name, String label, String description, ValueDescriptor... fields) {
+      return EventFactory.create(List.of(
+          new AnnotationElement(Name.class, name),
+          new AnnotationElement(Label.class, label),
+          new AnnotationElement(Category.class, new String[]{"Vector"}),
+          new AnnotationElement(Description.class, description)
+      ), List.of(fields));
+    }
+
+    /** commits an event (unless it isn't being recorded) */
+    static void emit(EventFactory factory, Object... values) {
+      Object event = factory.newEvent();
+      try {
+        for(int i = 0; i < values.length; i++) { SET.invoke(event, i, values[i]); }
+        COMMIT.invoke(event);
+      } catch(RuntimeException | Error e) {
+        throw e;
+      } catch(Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package experiment.vector;
+
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/** A vector of unboxed `int`s, in `int[]` leaves and tails (see `PrimitiveVector`). */
+public final class IntVector extends PrimitiveVector<int[], IntVector> {
+  private static final int[] EMPTY_ARRAY = new int[]{};
+
+  private IntVector(int[] left, Vector<int[]> leaves, int[] right) { super(left, leaves, right); }
+
+  @SuppressWarnings("unchecked")
+  public static final IntVector empty = new IntVector(EMPTY_ARRAY, (Vector<int[]>) Vector.empty, EMPTY_ARRAY);
+
+  IntVector make(int[] left, Vector<int[]> leaves, int[] right) { return new IntVector(left, leaves, right); }
+  int[] allocate(int length) { return length == 0 ? EMPTY_ARRAY : new int[length]; }
+
+  public static IntVector of(int... elements) { return empty.of(elements, elements.length); }
+
+  public int get(int i) { return array(i)[index(i)]; }
+
+  public IntVector update(int i, int element) { return update(i, (array, j) -> array[j] = element); }
+  public IntVector push_right(int e) { return push_right((array, j) -> array[j] = e); }
+  public IntVector push_left(int e) { return push_left((array, j) -> array[j] = e); }
+
+  public int[] toArray() { return elements(); }
+
+  /** Iterates over whole leaves, so that the elements are never boxed. */
+  public PrimitiveIterator.OfInt iterator() {
+    final class Iterator extends Elements implements PrimitiveIterator.OfInt {
+      @Override
+      public int nextInt() {
+        if(!hasNext()) { throw new NoSuchElementException(); }
+        return current[i++];
+      }
+    }
+    return new Iterator();
+  }
+}
@@ -0,0 +1,40 @@
+package experiment.vector;
+
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/** A vector of unboxed `long`s, in `long[]` leaves and tails (see `PrimitiveVector`). */
+public final class LongVector extends PrimitiveVector<long[], LongVector> {
+  private static final long[] EMPTY_ARRAY = new long[]{};
+
+  private LongVector(long[] left, Vector<long[]> leaves, long[] right) { super(left, leaves, right); }
+
+  @SuppressWarnings("unchecked")
+  public static final LongVector empty = new LongVector(EMPTY_ARRAY, (Vector<long[]>) Vector.empty, EMPTY_ARRAY);
+
+  LongVector make(long[] left, Vector<long[]> leaves, long[] right) { return new LongVector(left, leaves, right); }
+  long[] allocate(int length) { return length == 0 ? EMPTY_ARRAY : new long[length]; }
+
+  public static LongVector of(long... elements) { return empty.of(elements, elements.length); }
+
+  public long get(int i) { return array(i)[index(i)]; }
+
+  public LongVector update(int i, long element) { return update(i, (array, j) -> array[j] = element); }
+  public LongVector push_right(long e) { return push_right((array, j) -> array[j] = e); }
+  public LongVector push_left(long e) { return push_left((array, j) -> array[j] = e); }
+
+  public long[] toArray() { return elements(); }
+
+  /** Iterates over whole leaves, so that the elements are never boxed. */
+  public PrimitiveIterator.OfLong iterator() {
+    final class Iterator extends Elements implements PrimitiveIterator.OfLong {
+      @Override
+      public long nextLong() {
+        if(!hasNext()) { throw new NoSuchElementException(); }
+        return current[i++];
+      }
+    }
+    return new Iterator();
+  }
+}
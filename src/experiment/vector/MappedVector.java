@@ -0,0 +1,276 @@
+package experiment.vector;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A read-only snapshot of a vector in a file. `write` stores the leaves of the vector in order, and `open` maps the
+ * file into memory, so `get` and iteration read the elements directly from the mapping and opening a snapshot takes
+ * the same time whatever its size.
+ *
+ * The file (little-endian) starts with a header, followed by the index area and the leaf area, which starts at a
+ * page boundary. Unboxed elements have a fixed width, so the index area is empty and the element `i` is found at
+ * `i * width` in the leaf area. Other elements are serialized by a `Codec`; the index area then holds the offsets of
+ * all elements in the leaf area (and the offset of its end). Files larger than 1 GB are mapped in segments of 1 GB.
+ */
+public final class MappedVector<E> implements Iterable<E> {
+  /** Serializes the elements of a vector (which can't be `null`). */
+  public interface Codec<E> {
+    byte[] encode(E element);
+    E decode(byte[] bytes);
+  }
+
+  public static final Codec<String> UTF8 = new Codec<>() {
+    public byte[] encode(String element) { return element.getBytes(StandardCharsets.UTF_8); }
+    public String decode(byte[] bytes) { return new String(bytes, StandardCharsets.UTF_8); }
+  };
+
+  private static final int MAGIC = 0x31434556;     // "VEC1"
+  private static final int INTS = 1, LONGS = 2, DOUBLES = 3, OBJECTS = 4;
+  private static final int HEADER = 32;           // magic, kind, size, index area, leaf area
+  private static final int PAGE = 4096;
+  private static final int SEGMENT_SHIFT = 30;
+  private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+  private final ByteBuffer[] segments;
+  private final int kind;
+  private final int size;
+  private final long index;       // the start of the index area
+  private final long leaves;      // the start of the leaf area
+  private final Codec<E> codec;
+
+  private MappedVector(ByteBuffer[] segments, Codec<E> codec) {
+    var header = segments[0];
+    this.segments = segments;
+    this.kind = header.getInt(4);
+    this.size = (int) header.getLong(8);
+    this.index = header.getLong(16);
+    this.leaves = header.getLong(24);
+    this.codec = codec;
+  }
+
+  public static void write(Path path, IntVector v) throws IOException {
+    try(var out = new Writer(path, INTS, v.size(), HEADER)) {
+      for(var i = v.iterator(); i.hasNext();) { out.leaves(Integer.BYTES).putInt(i.nextInt()); }
+      out.complete();
+    }
+  }
+
+  public static void write(Path path, LongVector v) throws IOException {
+    try(var out = new Writer(path, LONGS, v.size(), HEADER)) {
+      for(var i = v.iterator(); i.hasNext();) { out.leaves(Long.BYTES).putLong(i.nextLong()); }
+      out.complete();
+    }
+  }
+
+  public static void write(Path path, DoubleVector v) throws IOException {
+    try(var out = new Writer(path, DOUBLES, v.size(), HEADER)) {
+      for(var i = v.iterator(); i.hasNext();) { out.leaves(Double.BYTES).putDouble(i.nextDouble()); }
+      out.complete();
+    }
+  }
+
+  public static <E> void write(Path path, Vector<E> v, Codec<? super E> codec) throws IOException {
+    try(var out = new Writer(path, OBJECTS, v.size(), HEADER + Long.BYTES * (v.size() + 1L))) {
+      long offset = 0;
+      out.index(Long.BYTES).putLong(offset);
+      for(var e : v) {
+        var bytes = codec.encode(e);
+        out.leaves(bytes);
+        offset += bytes.length;
+        out.index(Long.BYTES).putLong(offset);
+      }
+      out.complete();
+    }
+  }
+
+  public static MappedVector<Integer> openInts(Path path) throws IOException { return open(path, INTS, null); }
+  public static MappedVector<Long> openLongs(Path path) throws IOException { return open(path, LONGS, null); }
+  public static MappedVector<Double> openDoubles(Path path) throws IOException { return open(path, DOUBLES, null); }
+  public static <E> MappedVector<E> open(Path path, Codec<E> codec) throws IOException {
+    return open(path, OBJECTS, codec);
+  }
+
+  private static <E> MappedVector<E> open(Path path, int kind, Codec<E> codec) throws IOException {
+    try(var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long length = channel.size();
+      var segments = new ByteBuffer[(int) ((length + SEGMENT_MASK) >> SEGMENT_SHIFT)];
+      for(int j = 0; j < segments.length; j++) {
+        long start = (long) j << SEGMENT_SHIFT;
+        var mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_MASK + 1, length - start));
+        segments[j] = mapped.order(ByteOrder.LITTLE_ENDIAN);
+      }
+      if(length < HEADER || segments[0].getInt(0) != MAGIC) { throw new IOException(path + " is not a snapshot"); }
+      var result = new MappedVector<>(segments, codec);
+      if(result.kind != kind) { throw new IOException(path + " is a snapshot of another kind of elements"); }
+      return result;
+    }
+  }
+
+  public int size() { return size; }
+
+  @SuppressWarnings("unchecked")
+  public E get(int i) {
+    return switch(kind) {
+      case INTS -> (E) (Integer) getInt(i);
+      case LONGS -> (E) (Long) getLong(i);
+      case DOUBLES -> (E) (Double) getDouble(i);
+      default -> {
+        check(i, OBJECTS);
+        long start = read_long(index + (long) Long.BYTES * i);
+        long end = read_long(index + (long) Long.BYTES * (i + 1));
+        yield codec.decode(read(leaves + start, (int) (end - start)));
+      }
+    };
+  }
+
+  public int getInt(int i) {
+    long position = leaves + (long) Integer.BYTES * check(i, INTS);
+    return segment(position).getInt(offset(position));
+  }
+
+  public long getLong(int i) {
+    long position = leaves + (long) Long.BYTES * check(i, LONGS);
+    return read_long(position);
+  }
+
+  public double getDouble(int i) {
+    long position = leaves + (long) Double.BYTES * check(i, DOUBLES);
+    return segment(position).getDouble(offset(position));
+  }
+
+  private void require(int kind) {
+    if(this.kind != kind) { throw new UnsupportedOperationException("not a snapshot of this kind of elements"); }
+  }
+
+  private int check(int i, int kind) {
+    require(kind);
+    if(!(0 <= i && i < size)) { throw new IndexOutOfBoundsException(i); }
+    return i;
+  }
+
+  // fixed-width values never cross a segment boundary, as the segments are aligned to pages and to their width
+  private ByteBuffer segment(long position) { return segments[(int) (position >>> SEGMENT_SHIFT)]; }
+  private static int offset(long position) { return (int) (position & SEGMENT_MASK); }
+
+  private long read_long(long position) { return segment(position).getLong(offset(position)); }
+
+  /** `length` bytes from `position`, which can be spread over two or more segments */
+  private byte[] read(long position, int length) {
+    var result = new byte[length];
+    for(int done = 0; done < length;) {
+      var segment = segment(position + done);
+      int offset = offset(position + done);
+      int n = Math.min(length - done, segment.limit() - offset);
+      segment.get(offset, result, done, n);
+      done += n;
+    }
+    return result;
+  }
+
+  @Override
+  public Iterator<E> iterator() {
+    return new Iterator<>() {
+      private int i = 0;
+
+      @Override
+      public boolean hasNext() { return i < size; }
+
+      @Override
+      public E next() {
+        if(i == size) { throw new NoSuchElementException(); }
+        return get(i++);
+      }
+    };
+  }
+
+  /** Iterates over the elements of a snapshot of an `IntVector` without boxing them. */
+  public PrimitiveIterator.OfInt intIterator() {
+    require(INTS);
+    return new PrimitiveIterator.OfInt() {
+      private int i = 0;
+
+      @Override
+      public boolean hasNext() { return i < size; }
+
+      @Override
+      public int nextInt() {
+        if(i == size) { throw new NoSuchElementException(); }
+        return getInt(i++);
+      }
+    };
+  }
+
+  /**
+   * Writes the index and leaf areas through separate buffers, and then the header, once all of them are on the disk
+   * (and only if the snapshot was `complete`), so that a partially written file is never taken for a snapshot.
+   */
+  private static final class Writer implements AutoCloseable {
+    private final FileChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+    private boolean complete = false;
+    private final ByteBuffer index = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer leaves = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    private long index_position = HEADER;
+    private long leaves_position;
+
+    Writer(Path path, int kind, int size, long index_end) throws IOException {
+      channel = FileChannel.open(
+          path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+      );
+      leaves_position = (index_end + PAGE - 1) / PAGE * PAGE;
+      header.putInt(MAGIC).putInt(kind).putLong(size).putLong(HEADER).putLong(leaves_position).flip();
+    }
+
+    /** marks the snapshot as fully written, so that `close` writes its header */
+    void complete() { complete = true; }
+
+    /** the buffer of the index area, with room for `n` more bytes */
+    ByteBuffer index(int n) throws IOException {
+      if(index.remaining() < n) { index_position = flush(index, index_position); }
+      return index;
+    }
+
+    /** the buffer of the leaf area, with room for `n` more bytes */
+    ByteBuffer leaves(int n) throws IOException {
+      if(leaves.remaining() < n) { leaves_position = flush(leaves, leaves_position); }
+      return leaves;
+    }
+
+    void leaves(byte[] bytes) throws IOException {
+      for(int done = 0; done < bytes.length;) {
+        int n = Math.min(bytes.length - done, leaves(1).remaining());
+        leaves.put(bytes, done, n);
+        done += n;
+      }
+    }
+
+    private long flush(ByteBuffer buffer, long position) throws IOException {
+      buffer.flip();
+      while(buffer.hasRemaining()) { position += channel.write(buffer, position); }
+      buffer.clear();
+      return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try(channel) {
+        if(!complete) { return; }       // leaves the header empty
+        flush(index, index_position);
+        flush(leaves, leaves_position);
+        channel.force(false);
+        while(header.hasRemaining()) { channel.write(header, header.position()); }
+        channel.force(false);
+      }
+    }
+  }
+}
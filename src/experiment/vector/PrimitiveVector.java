@@ -0,0 +1,188 @@
+package experiment.vector;
+
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The common part of `IntVector`, `LongVector` and `DoubleVector`, whose elements are kept in arrays `A` of their
+ * primitive type. Full leaves of `SIZE` elements are stored as the elements of a `Vector`, so the trie has the same
+ * two halves as the one of `Vector` (whose leaves become the lowest level of nodes). The elements at both ends that
+ * don't fill a whole leaf are kept in the `left` and `right` tails.
+ *
+ * This class only moves whole arrays around; the subclasses read and write their elements, so they are never boxed.
+ */
+abstract class PrimitiveVector<A, V extends PrimitiveVector<A, V>> {
+  static final int SHIFT = Integer.numberOfTrailingZeros(Vector.branchingFactor());   // leaves like those of `Vector`
+  static final int SIZE = 1 << SHIFT;
+  static final int MASK = SIZE - 1;
+
+  final A left;
+  final Vector<A> leaves;
+  final A right;
+  final int left_size;
+  final int right_size;
+
+  PrimitiveVector(A left, Vector<A> leaves, A right) {
+    this.left = left;
+    this.leaves = leaves;
+    this.right = right;
+    this.left_size = Array.getLength(left);
+    this.right_size = Array.getLength(right);
+    assert left_size <= SIZE && right_size <= SIZE;
+  }
+
+  abstract V make(A left, Vector<A> leaves, A right);
+  abstract A allocate(int length);
+
+  /** `count` elements of `array` from `from`, at `at` in a new array of `length` */
+  private A copy(A array, int from, int count, int length, int at) {
+    var result = allocate(length);
+    System.arraycopy(array, from, result, at, count);
+    return result;
+  }
+
+  /** a vector of the elements of `array` (of `length`), in full leaves and the right tail */
+  @SuppressWarnings("unchecked")
+  V of(A array, int length) {
+    int n = length / SIZE;
+    var leaves = new Object[n];
+    for(int i = 0; i < n; i++) {
+      leaves[i] = copy(array, i * SIZE, SIZE, SIZE, 0);
+    }
+    int rest = length - n * SIZE;
+    return make(allocate(0), (Vector<A>) Vector.from(Arrays.asList(leaves)), copy(array, n * SIZE, rest, rest, 0));
+  }
+
+  public int size() { return left_size + (leaves.size() << SHIFT) + right_size; }
+
+  private void check(int i) {
+    if(!(0 <= i && i < size())) { throw new IndexOutOfBoundsException(i); }
+  }
+
+  /** the array (a tail or a leaf) that holds the element `i` */
+  final A array(int i) {
+    check(i);
+    if(i < left_size) { return left; }
+    int j = (i - left_size) >> SHIFT;
+    return j < leaves.size() ? leaves.get(j) : right;
+  }
+
+  /** the index of the element `i` in `array(i)` */
+  final int index(int i) {
+    if(i < left_size) { return i; }
+    i -= left_size;
+    return (i >> SHIFT) < leaves.size() ? i & MASK : i - (leaves.size() << SHIFT);
+  }
+
+  /** a copy of the vector in which `set` changed the element `i` (given the array and the index that hold it) */
+  final V update(int i, ObjIntConsumer<A> set) {
+    check(i);
+    if(i < left_size) {
+      var new_left = copy(left, 0, left_size, left_size, 0);
+      set.accept(new_left, i);
+      return make(new_left, leaves, right);
+    }
+    i -= left_size;
+    int j = i >> SHIFT;
+    if(j < leaves.size()) {
+      var leaf = copy(leaves.get(j), 0, SIZE, SIZE, 0);
+      set.accept(leaf, i & MASK);
+      return make(left, leaves.update(j, leaf), right);
+    }
+    var new_right = copy(right, 0, right_size, right_size, 0);
+    set.accept(new_right, i - (leaves.size() << SHIFT));
+    return make(left, leaves, new_right);
+  }
+
+  /** the vector with an element pushed to the right, which `set` writes (given the array and the index) */
+  final V push_right(ObjIntConsumer<A> set) {
+    if(right_size < SIZE) {
+      var new_right = copy(right, 0, right_size, right_size + 1, 0);
+      set.accept(new_right, right_size);
+      return make(left, leaves, new_right);
+    } else {
+      var new_right = allocate(1);
+      set.accept(new_right, 0);
+      return make(left, leaves.push_right(right), new_right);
+    }
+  }
+
+  /** the vector with an element pushed to the left, which `set` writes (given the array and the index) */
+  final V push_left(ObjIntConsumer<A> set) {
+    if(left_size < SIZE) {
+      var new_left = copy(left, 0, left_size, left_size + 1, 1);
+      set.accept(new_left, 0);
+      return make(new_left, leaves, right);
+    } else {
+      var new_left = allocate(1);
+      set.accept(new_left, 0);
+      return make(new_left, leaves.push_left(left), right);
+    }
+  }
+
+  public V pop_right() {
+    if(right_size > 0) {
+      return make(left, leaves, copy(right, 0, right_size - 1, right_size - 1, 0));
+    } else if(leaves.size() > 0) {
+      var last = leaves.get(leaves.size() - 1);
+      return make(left, leaves.pop_right(), copy(last, 0, SIZE - 1, SIZE - 1, 0));
+    } else if(left_size > 0) {
+      return make(copy(left, 0, left_size - 1, left_size - 1, 0), leaves, right);
+    } else {
+      throw new IllegalStateException("empty vector");
+    }
+  }
+
+  public V pop_left() {
+    if(left_size > 0) {
+      return make(copy(left, 1, left_size - 1, left_size - 1, 0), leaves, right);
+    } else if(leaves.size() > 0) {
+      var first = leaves.get(0);
+      return make(copy(first, 1, SIZE - 1, SIZE - 1, 0), leaves.pop_left(), right);
+    } else if(right_size > 0) {
+      return make(left, leaves, copy(right, 1, right_size - 1, right_size - 1, 0));
+    } else {
+      throw new IllegalStateException("empty vector");
+    }
+  }
+
+  /** all elements, in a new array */
+  final A elements() {
+    var result = allocate(size());
+    System.arraycopy(left, 0, result, 0, left_size);
+    int offset = left_size;
+    for(var leaf : leaves) {
+      System.arraycopy(leaf, 0, result, offset, SIZE);
+      offset += SIZE;
+    }
+    System.arraycopy(right, 0, result, offset, right_size);
+    return result;
+  }
+
+  /** Iterates over whole arrays (the tails and the leaves); subclasses read the element `i` of `current`. */
+  abstract class Elements {
+    private final Iterator<A> rest = leaves.iterator();
+    A current = left;
+    private int length = left_size;
+    private boolean last = false;
+    int i = 0;
+
+    public boolean hasNext() {
+      while(i == length && !last) {
+        i = 0;
+        if(rest.hasNext()) {
+          current = rest.next();
+          length = SIZE;
+        } else {
+          current = right;
+          length = right_size;
+          last = true;
+        }
+      }
+      return i < length;
+    }
+  }
+}
@@ -1,28 +1,97 @@
 package experiment.vector;
 
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public final class Vector<E> implements Iterable<E> {
   private record Pair(Object[] left, Object[] right) {}
 
   private static final Object[] EMPTY_ARRAY = new Object[]{};
-//  private static final int SHIFT = 2;         // for debugging purposes
-  private static final int SHIFT = 5;
+  /**
+   * The number of bits of an index per trie level, 5 (i.e. 32-way nodes) unless the JVM is started with
+   * `-Dexperiment.vector.shift=6` (or `2` or `3`, for debugging purposes). It's a `static final` field, so the JIT
+   * compiles the code for that value only, just like for a literal. This makes the branching factor a property of
+   * the JVM: all vectors of a process (and the primitive and aggregate vectors built on them) share it, so different
+   * branching factors are compared in different JVMs (such as the forks of `BranchingBenchmark`).
+   *
+   * The shift of a half (the number of index bits its trie covers) is a multiple of `SHIFT` and has to stay below
+   * 31, as `1 << shift` is an `int`. With a shift that divides 30, a half covers up to 2^30 elements, and the halves
+   * are balanced, so they only outgrow that when the vector has more than `Integer.MAX_VALUE` elements. Other values
+   * (such as 4, i.e. 16-way nodes, whose halves would have to grow past 2^28 elements) are rejected.
+   */
+  private static final int SHIFT = shift(System.getProperty("experiment.vector.shift", "5"));
   private static final int SIZE = 1 << SHIFT;      // size of a trie level
   private static final int MASK = SIZE - 1;
 
+  /** parses the shift; an invalid one fails the initialization of the class, with a message that says why */
+  private static int shift(String property) {
+    int shift;
+    try {
+      shift = Integer.parseInt(property.trim());
+    } catch(NumberFormatException e) {
+      shift = -1;
+    }
+    if(shift < 2 || shift > 6 || 30 % shift != 0) {
+      throw new ExceptionInInitializerError(
+          "invalid -Dexperiment.vector.shift=" + property + ", the shift of Vector must be 2, 3, 5 or 6 (5 by default)"
+      );
+    }
+    return shift;
+  }
+
+  /** the number of children of the nodes of the tries (and of elements in their leaves), the same for the whole JVM */
+  public static int branchingFactor() { return SIZE; }
+
   private final Left<E> left;
+  private final Middle middle;     // only concatenated vectors have a middle part
   private final Right<E> right;
+  private int hash;                // cached by `hashCode`, 0 until computed
 
-  private Vector(Left<E> left, Right<E> right) {
-    assert Math.abs(left.shift - right.shift) <= SHIFT;   // THE invariant
+  private Vector(Left<E> left, Middle middle, Right<E> right) {
+    assert middle != null || Math.abs(left.shift - right.shift) <= SHIFT;   // THE invariant
+    assert middle == null || middle.size > 0;
     this.left = left;
+    this.middle = middle;
     this.right = right;
   }
 
-  public static final Vector<?> empty = new Vector<>(Left.empty, Right.empty);
+  public static final Vector<?> empty = new Vector<>(Left.empty, null, Right.empty);
 
   private static byte shift(int size) {
     int rem = size - 1;
@@ -33,24 +102,435 @@ public final class Vector<E> implements Iterable<E> {
     }
     return shift;
   }
-  public int size() { return left.extra.length + left.data_size + right.data_size + right.extra.length; }
-  public void debug() { left.debug(); right.debug(); }
+  public int size() {
+    int size = left.extra_size + left.data_size + right.data_size + right.extra_size;
+    return middle == null ? size : size + middle.size;
+  }
+  public void debug() {
+    left.debug();
+    if(middle != null) { middle.debug(); }
+    right.debug();
+  }
+
+  /**
+   * The shape of a vector: the depth of both tries (0 if they are empty) and the height of `middle` (-1 if there is
+   * none), the number of distinct inner nodes and leaves (excluding the tails), the fill factor of the leaves, the
+   * number of elements in both tails, and the estimated number of bytes retained by the vector, excluding the elements.
+   */
+  public record Stats(
+      int left_depth, int middle_height, int right_depth, int nodes, int leaves, double fill,
+      int left_extra, int right_extra, long bytes
+  ) {}
+
+  // estimated sizes on a 64-bit JVM with compressed references: `Vector`, `Left` or `Right`, `Middle`
+  private static final int VECTOR_BYTES = 32, HALF_BYTES = 32, MIDDLE_BYTES = 24;
+
+  public Stats stats() {
+    int[] counts = new int[3];      // inner nodes, leaves, elements in leaves
+    long[] bytes = {VECTOR_BYTES + 2 * HALF_BYTES + (middle == null ? 0 : MIDDLE_BYTES)};
+    arrays((array, height) -> {
+      bytes[0] += bytes(array, height);
+      if(height > 0) {
+        counts[0]++;
+      } else if(array != left.extra && array != right.extra) {
+        counts[1]++;
+        counts[2] += array.length;
+      }
+    });
+    return new Stats(
+        left.shift / SHIFT, middle == null ? -1 : middle.height, right.shift / SHIFT, counts[0], counts[1],
+        counts[1] == 0 ? 1.0 : (double) counts[2] / ((long) counts[1] * SIZE), left.extra_size, right.extra_size,
+        bytes[0]
+    );
+  }
+
+  /**
+   * The estimated number of bytes of all arrays (nodes, leaves and tails) that this vector shares with `other`, i.e.
+   * how much memory is saved by keeping both vectors rather than two unrelated ones. Takes `O(n)` time.
+   */
+  public long sharedBytes(Vector<?> other) {
+    var theirs = Collections.newSetFromMap(new IdentityHashMap<Object[], Boolean>());
+    other.arrays((array, height) -> theirs.add(array));
+    long[] shared = {0};
+    arrays((array, height) -> {
+      if(theirs.contains(array)) { shared[0] += bytes(array, height); }
+    });
+    return shared[0];
+  }
+
+  private interface ArrayVisitor { void visit(Object[] array, int height); }
+
+  /**
+   * visits all arrays of this vector once, even if they appear several times (e.g. in `fill`); the leaves have height
+   * 0, as do the tails
+   */
+  private void arrays(ArrayVisitor visitor) {
+    var seen = Collections.newSetFromMap(new IdentityHashMap<Object[], Boolean>());
+    if(left.extra.length > 0) { arrays(left.extra, 0, visitor, seen); }
+    if(left.data != null) { arrays(left.data, left.shift / SHIFT - 1, visitor, seen); }
+    if(middle != null) { arrays(middle.root, middle.height, visitor, seen); }
+    if(right.data != null) { arrays(right.data, right.shift / SHIFT - 1, visitor, seen); }
+    if(right.extra.length > 0) { arrays(right.extra, 0, visitor, seen); }
+  }
+
+  private static void arrays(Object[] node, int height, ArrayVisitor visitor, Set<Object[]> seen) {
+    if(!seen.add(node)) { return; }
+    visitor.visit(node, height);
+    if(height > 0) {
+      for(int j = 0, n = Middle.children(node); j < n; j++) {
+        arrays((Object[]) node[j], height - 1, visitor, seen);
+      }
+    }
+  }
+
+  /** the estimated size of `array` (including the sizes of a relaxed node) */
+  private static long bytes(Object[] array, int height) {
+    long bytes = (16 + 4L * array.length + 7) & ~7;
+    var sizes = height > 0 ? Middle.sizes(array) : null;
+    if(sizes != null) { bytes += (16 + 4L * sizes.length + 7) & ~7; }
+    return bytes;
+  }
 
   @SuppressWarnings("unchecked")
   public E get(int i) {
     if(!(0 <= i && i < size())) { throw new IndexOutOfBoundsException(i); }
-    var left_size = left.extra.length + left.data_size;
-    return (E) (i < left_size ? left.get(i) : right.get(i - left_size));
+    var left_size = left.extra_size + left.data_size;
+    if(i < left_size) { return (E) left.get(i); }
+    i -= left_size;
+    if(middle != null) {
+      if(i < middle.size) { return (E) middle.get(i); }
+      i -= middle.size;
+    }
+    return (E) right.get(i);
   }
 
   public Vector<E> update(int i, E element) {
     if(!(0 <= i && i < size())) { throw new IndexOutOfBoundsException(i); }
-    var left_size = left.extra.length + left.data_size;
+    if(Instrumentation.ENABLED) { Instrumentation.operation(); }
+    var left_size = left.extra_size + left.data_size;
     if(i < left_size) {
-      return new Vector<>(left.update(i, element), right);
-    } else {
-      return new Vector<>(left, right.update(i - left_size, element));
+      return new Vector<>(left.update(i, element), middle, right);
+    }
+    i -= left_size;
+    if(middle != null) {
+      if(i < middle.size) { return new Vector<>(left, middle.update(i, element), right); }
+      i -= middle.size;
+    }
+    return new Vector<>(left, middle, right.update(i, element));
+  }
+
+  /**
+   * Sets the elements at `indices` to the corresponding `values` (in order, so the last value wins for duplicate
+   * indices). Each node on the paths to the updated elements is copied only once, however many of them it contains.
+   */
+  public Vector<E> updateAll(int[] indices, E[] values) {
+    if(indices.length != values.length) {
+      throw new IllegalArgumentException(indices.length + " indices but " + values.length + " values");
+    }
+    if(indices.length == 0) { return this; }
+    var t = asTransient();
+    for(int i = 0; i < indices.length; i++) { t.update(indices[i], values[i]); }
+    return t.persistent();
+  }
+
+  /** Sets the elements from `from` to `from + values.length` to `values`, copying each touched node only once. */
+  public Vector<E> updateRange(int from, E[] values) {
+    if(!(0 <= from && from + values.length <= size())) {
+      throw new IndexOutOfBoundsException("updateRange(" + from + ", " + values.length + ") of size " + size());
     }
+    if(values.length == 0) { return this; }
+    var t = asTransient();
+    for(int i = 0; i < values.length; i++) { t.update(from + i, values[i]); }
+    return t.persistent();
+  }
+
+  /**
+   * Concatenates two vectors in `O(log n)` time. Unless one of them is small, the inner halves of both vectors are
+   * joined into a relaxed `Middle` tree, which stays between the `left` and `right` halves of the result.
+   */
+  public Vector<E> concat(Vector<E> other) {
+    if(other.size() <= SIZE) {
+      var result = this;
+      for(var e : other) { result = result.push_right(e); }
+      return result;
+    } else if(size() <= SIZE) {
+      var result = other;
+      for(int i = size() - 1; i >= 0; i--) { result = result.push_left(get(i)); }
+      return result;
+    }
+    var start = Middle.concat(Middle.concat(middle, right.middle()), Middle.leaf(right.tail()));
+    var end = Middle.concat(Middle.concat(Middle.leaf(other.left.tail()), other.left.middle()), other.middle);
+    return new Vector<>(left, Middle.concat(start, end), other.right);
+  }
+
+  /**
+   * Inserts `e` before the element `i` (or at the end if `i == size()`) in `O(log n)` time, by slicing the vector at
+   * `i` and concatenating the parts with `e` in between.
+   */
+  public Vector<E> insert(int i, E e) {
+    if(!(0 <= i && i <= size())) { throw new IndexOutOfBoundsException(i); }
+    if(i == 0) { return push_left(e); }
+    if(i == size()) { return push_right(e); }
+    return take(i).push_right(e).concat(drop(i));
+  }
+
+  /** Inserts all elements of `other` before the element `i` in `O(log n)` time. */
+  public Vector<E> insertAll(int i, Vector<E> other) {
+    if(!(0 <= i && i <= size())) { throw new IndexOutOfBoundsException(i); }
+    if(i == 0) { return other.concat(this); }
+    if(i == size()) { return concat(other); }
+    return take(i).concat(other).concat(drop(i));
+  }
+
+  /** Removes the element `i` in `O(log n)` time. */
+  public Vector<E> removeAt(int i) {
+    if(!(0 <= i && i < size())) { throw new IndexOutOfBoundsException(i); }
+    if(i == 0) { return pop_left(); }
+    if(i == size() - 1) { return pop_right(); }
+    return take(i).concat(drop(i + 1));
+  }
+
+  public Vector<E> take(int n) { return slice(0, n); }
+  public Vector<E> drop(int n) { return slice(n, size()); }
+  public Vector<E> takeRight(int n) { return slice(size() - n, size()); }
+  public Vector<E> dropRight(int n) { return slice(0, size() - n); }
+
+  /**
+   * Returns the elements from `from` (inclusive) to `to` (exclusive) in `O(log n)` time. Only the nodes along the cuts
+   * are copied, all other subtrees are shared with this vector.
+   */
+  public Vector<E> slice(int from, int to) {
+    if(!(0 <= from && from <= to && to <= size())) {
+      throw new IndexOutOfBoundsException("slice(" + from + ", " + to + ") of size " + size());
+    }
+    if(from == 0 && to == size()) { return this; }
+    if(to - from <= SIZE) {
+      var elements = new Object[to - from];
+      for(int i = from; i < to; i++) { elements[i - from] = get(i); }
+      return build(elements, 0, elements.length);
+    }
+    int left_size = left.extra_size + left.data_size;
+    int right_start = middle == null ? left_size : left_size + middle.size;
+    if(to <= left_size) { return slice(left, from, to); }
+    if(from >= right_start) { return slice(right, from - right_start, to - right_start); }
+    var new_left = from < left_size ? left.suffix(from) : Left.<E>empty();
+    var new_right = to > right_start ? right.prefix(to - right_start) : Right.<E>empty();
+    if(middle == null) { return balanced(new_left, new_right); }
+    var new_middle = middle.slice(Math.max(from - left_size, 0), Math.min(to - left_size, middle.size));
+    return new Vector<>(new_left, new_middle, new_right);
+  }
+
+  /**
+   * Slices a single half. The full leaves of the slice are split between the halves of the result below their lowest
+   * common ancestor, so that the new `left` is a suffix of one of its children and the new `right` a prefix of another.
+   */
+  private static <E> Vector<E> slice(Half<E, ?, ?> half, int from, int to) {
+    int start = half.data_start();
+    int a = Math.min(Math.max(from - start + MASK, 0) & ~MASK, half.data_size);    // first full leaf
+    int b = Math.max(Math.min(to - start, half.data_size), 0) & ~MASK;             // end of the last full leaf
+    if(a >= b) {
+      return new Vector<>(
+          new Left<>(0, null, half.elements(from, start + a)),
+          null,
+          new Right<>(0, null, half.elements(start + a, to))
+      );
+    }
+    Object[] node = half.data;
+    int height = half.shift / SHIFT - 1;
+    int lo = half.leaf_offset() + a / SIZE, hi = half.leaf_offset() + b / SIZE;     // in leaves, relative to `node`
+    while(height > 0 && lo >> (SHIFT * (height - 1)) == (hi - 1) >> (SHIFT * (height - 1))) {
+      int c = lo >> (SHIFT * (height - 1));
+      node = (Object[]) node[half.index(node, c)];
+      lo -= c << (SHIFT * (height - 1));
+      hi -= c << (SHIFT * (height - 1));
+      height -= 1;
+    }
+    Object[] left_data = null, right_data = node;
+    int split = lo;
+    if(height > 0) {
+      int shift = SHIFT * (height - 1);
+      int ca = lo >> shift, cb = (hi - 1) >> shift;
+      int ja = half.index(node, ca), jb = half.index(node, cb);
+      split = cb << shift;
+      left_data = Arrays.copyOfRange(node, ja, jb);
+      left_data[0] = half.suffix((Object[]) node[ja], height - 1, lo - (ca << shift));
+      left_data = unwrap(left_data);
+      right_data = unwrap(half.prefix((Object[]) node[jb], height - 1, hi - split));
+    }
+    return balanced(
+        new Left<>((split - lo) * SIZE, left_data, half.elements(from, start + a)),
+        new Right<>((hi - split) * SIZE, right_data, half.elements(start + b, to))
+    );
+  }
+
+  /** removes single-child nodes from the top of a trie */
+  private static Object[] unwrap(Object[] root) {
+    while(root.length == 1) { root = (Object[]) root[0]; }
+    return root;
+  }
+
+  /** Restores the invariant by moving whole subtrees from the deeper half to the other one. */
+  private static <E> Vector<E> balanced(Left<E> left, Right<E> right) {
+    if(left.shift > right.shift + SHIFT) { return balance(right, left); }
+    if(right.shift > left.shift + SHIFT) { return balance(left, right); }
+    return new Vector<>(left, null, right);
+  }
+
+  /**
+   * Moves half of the subtrees of `deep` at some level `g` to `shallow`, which is added as another subtree. Usually
+   * `g` is the level of the children of the root; if the root has only 2 children (the last one possibly very small),
+   * it is the level below, so that both halves end up with a depth within one level of the original one.
+   */
+  private static <E, A extends Half<E, A, B>, B extends Half<E, B, A>> Vector<E> balance(A shallow, B deep) {
+    int height = deep.shift / SHIFT - 1;
+    int g = deep.data.length > 2 || height == 1 ? height - 1 : height - 2;
+    Object[] blocks = deep.data;
+    if(g < height - 1) {
+      var grandchildren = new ArrayList<>();
+      for(var child : deep.data) { grandchildren.addAll(Arrays.asList((Object[]) child)); }
+      blocks = grandchildren.toArray();
+    }
+    int m = blocks.length / 2;
+    int start = deep.start_index(blocks) == 0 ? 0 : blocks.length - m;     // the blocks next to `shallow`
+    var moved = Arrays.copyOfRange(blocks, start, start + m);
+    var kept = start == 0 ? Arrays.copyOfRange(blocks, m, blocks.length) : Arrays.copyOf(blocks, blocks.length - m);
+    if(shallow.data != null) {
+      var data = shallow.data;
+      for(int h = shallow.shift / SHIFT - 1; h < g; h++) { data = new Object[]{data}; }
+      moved = shallow.push(moved, data);
+    }
+    int moved_size = m << (SHIFT * (g + 1));
+    return deep.vector(
+        shallow.make(shallow.data_size + moved_size, shallow.root(moved)),
+        null,
+        deep.make(deep.data_size - moved_size, unwrap(deep.root(kept)))
+    );
+  }
+
+  @SafeVarargs
+  public static <E> Vector<E> of(E... elements) {
+    return build((from, count) -> {      // copies the elements one by one, so the varargs array isn't passed on
+      var leaf = count == 0 ? EMPTY_ARRAY : new Object[count];
+      for(int i = 0; i < count; i++) { leaf[i] = elements[from + i]; }
+      return leaf;
+    }, 0, elements.length);
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <E> Vector<E> from(Iterable<? extends E> elements) {
+    if(elements instanceof Vector<?> v) { return (Vector<E>) v; }
+    var array = array(elements);
+    return build(array, 0, array.length);
+  }
+
+  /** A vector of `n` times the element `e`, which shares one full leaf and one full node per level. */
+  @SuppressWarnings("unchecked")
+  public static <E> Vector<E> fill(int n, E e) {
+    if(n < 0) { throw new IllegalArgumentException("fill(" + n + ")"); }
+    if(n == 0) { return (Vector<E>) empty; }
+    var leaf = new Object[SIZE];
+    Arrays.fill(leaf, e);
+    return new Vector<>(Left.fill(leaf, n / 2), null, Right.fill(leaf, n - n / 2));
+  }
+
+  /** A vector of `f(0)` to `f(n - 1)`, built bottom-up, one leaf at a time. */
+  public static <E> Vector<E> tabulate(int n, IntFunction<? extends E> f) {
+    if(n < 0) { throw new IllegalArgumentException("tabulate(" + n + ")"); }
+    return build((from, count) -> {
+      if(count == 0) { return EMPTY_ARRAY; }
+      var leaf = new Object[count];
+      for(int i = 0; i < count; i++) { leaf[i] = f.apply(from + i); }
+      return leaf;
+    }, 0, n);
+  }
+
+  /** Creates the arrays of `count` elements, starting with the element `from`, that `build` puts in leaves. */
+  private interface LeafSource { Object[] leaf(int from, int count); }
+
+  private static <E> Vector<E> build(Object[] elements, int from, int to) {
+    return build((start, count) -> copy(elements, start, count), from, to);
+  }
+
+  /** Builds both halves bottom-up, splitting the elements evenly between them. */
+  @SuppressWarnings("unchecked")
+  private static <E> Vector<E> build(LeafSource elements, int from, int to) {
+    if(from == to) { return (Vector<E>) empty; }
+    int middle = from + (to - from) / 2;
+    return new Vector<>(Left.of(elements, from, middle), null, Right.of(elements, middle, to));
+  }
+
+  /**
+   * The root of a trie of `count` copies of the subtree `full`, where the nodes at each level are all the same full
+   * node, except for the last one (or the first one on the `left`).
+   */
+  private static Object[] repeat(Object[] full, int count, boolean left) {
+    Object[] partial = null;
+    while(count + (partial == null ? 0 : 1) > 1) {
+      int rest = count & MASK;
+      Object[] parent = null;
+      if(rest > 0 || partial != null) {
+        parent = new Object[rest + (partial == null ? 0 : 1)];
+        Arrays.fill(parent, full);
+        if(partial != null) { parent[left ? 0 : rest] = partial; }
+      }
+      if(count >= SIZE) {
+        var node = new Object[SIZE];
+        Arrays.fill(node, full);
+        full = node;
+      }
+      count >>= SHIFT;
+      partial = parent;
+    }
+    return count == 1 ? full : partial;
+  }
+
+  private static Object[] array(Iterable<?> elements) {
+    if(elements instanceof java.util.Collection<?> c) { return c.toArray(); }
+    var result = new ArrayList<>();
+    for(var e : elements) { result.add(e); }
+    return result.toArray();
+  }
+
+  /** Copies `count` elements of `array`, starting at `from`, into a new `Object[]`. */
+  private static Object[] copy(Object[] array, int from, int count) {
+    if(count == 0) { return EMPTY_ARRAY; }
+    var result = new Object[count];
+    System.arraycopy(array, from, result, 0, count);
+    return result;
+  }
+
+  private void copy_to(Object[] array, int offset) {
+    for(var e : this) { array[offset++] = e; }
+  }
+
+  /** Appends all `elements`, either by rebuilding the vector if there are many of them, or by pushing whole leaves. */
+  public Vector<E> appendAll(Iterable<? extends E> elements) {
+    var array = array(elements);
+    if(array.length == 0) { return this; }
+    if(array.length >= size()) {
+      var all = new Object[size() + array.length];
+      copy_to(all, 0);
+      System.arraycopy(array, 0, all, size(), array.length);
+      return build(all, 0, all.length);
+    }
+    var t = asTransient();
+    t.push_right_all(array);
+    return t.persistent();
+  }
+
+  /** Prepends all `elements` (keeping their order), like `appendAll`. */
+  public Vector<E> prependAll(Iterable<? extends E> elements) {
+    var array = array(elements);
+    if(array.length == 0) { return this; }
+    if(array.length >= size()) {
+      var all = new Object[array.length + size()];
+      System.arraycopy(array, 0, all, 0, array.length);
+      copy_to(all, array.length);
+      return build(all, 0, all.length);
+    }
+    var t = asTransient();
+    t.push_left_all(array);
+    return t.persistent();
   }
 
   public java.util.List<E> toList() {
@@ -59,18 +539,287 @@ public final class Vector<E> implements Iterable<E> {
     return result;
   }
 
+  /** Same elements in the same order; subtrees shared by both vectors at the same positions are not compared. */
+  @Override
+  public boolean equals(Object o) {
+    if(this == o) { return true; }
+    if(!(o instanceof Vector<?> other) || size() != other.size()) { return false; }
+    if(hash != 0 && other.hash != 0 && hash != other.hash) { return false; }
+    return compare(new Walk(this), new Walk(other), size(), (i, x, y) -> false);
+  }
+
+  private interface Mismatch { boolean at(int i, Object a, Object b); }    // `false` stops the comparison
+
+  /** compares the next `n` elements of both walks, returns `false` if `mismatch` stopped the comparison */
+  private static boolean compare(Walk a, Walk b, int n, Mismatch mismatch) {
+    for(int done = 0; done < n;) {
+      int rest = n - done;
+      if(a.node() == b.node() && a.from() == b.from() && a.size() == b.size() && a.size() <= rest) {
+        done += a.size();
+        a.skip(a.size());
+        b.skip(b.size());
+      } else if(a.height() > 0 && (b.height() == 0 || a.size() >= b.size())) {
+        a.expand();
+      } else if(b.height() > 0) {
+        b.expand();
+      } else {
+        int k = Math.min(rest, Math.min(a.size(), b.size()));
+        var x = a.node();
+        var y = b.node();
+        for(int i = a.from(), j = b.from(), end = i + k; i < end; i++, j++) {
+          if(!Objects.equals(x[i], y[j]) && !mismatch.at(done + i - a.from(), x[i], y[j])) { return false; }
+        }
+        done += k;
+        a.skip(k);
+        b.skip(k);
+      }
+    }
+    return true;
+  }
+
+  /** Receives the differences between two vectors, in the order of the methods below. */
+  public interface DiffConsumer<E> {
+    /** the number of elements removed from the start and from the end of the old vector */
+    void removed(int left, int right);
+    /** the elements added at the start and at the end, as slices of the new vector */
+    void added(Vector<E> left, Vector<E> right);
+    /** the element at `index` of the new vector has changed from `before` to `after` (in increasing `index`) */
+    void changed(int index, E before, E after);
+  }
+
+  /**
+   * Reports how `after` differs from `before`: elements removed and added at either end, then changed elements.
+   * Both vectors are aligned on the first leaf they share near their start, and subtrees shared by both at the same
+   * positions are skipped, so comparing two versions derived from each other takes time proportional to their
+   * differences (times `log n`). Unrelated vectors are compared element by element, at the same indices.
+   */
+  @SuppressWarnings("unchecked")
+  public static <E> void diff(Vector<E> before, Vector<E> after, DiffConsumer<E> consumer) {
+    int n = before.size(), m = after.size();
+    int d = Walk.alignment(new Walk(before), new Walk(after));     // `after` index of the element `before` index 0
+    int lo = Math.max(0, d), hi = Math.min(m, n + d);
+    if(lo > hi) {
+      d = 0;
+      lo = 0;
+      hi = Math.min(m, n);
+    }
+    consumer.removed(lo - d, n - (hi - d));
+    consumer.added(after.take(lo), after.drop(hi));
+    var a = new Walk(before);
+    var b = new Walk(after);
+    a.skip(lo - d);
+    b.skip(lo);
+    int start = lo;
+    compare(a, b, hi - lo, (i, x, y) -> {
+      consumer.changed(start + i, (E) x, (E) y);
+      return true;
+    });
+  }
+
+  /**
+   * The hashes of the nodes above the leaves that were hashed by `hashCode`, shared by all vectors (nodes are never
+   * modified once they are in a persistent vector). Vectors are hashed by many threads at once (e.g. as the keys of
+   * shared maps), so the hashes are kept in a `ConcurrentHashMap`, which is read without locking. The keys refer to
+   * the nodes weakly and compare them by identity; the entries of collected nodes are removed when hashes are added.
+   */
+  private static final Map<HashKey, Long> HASHES = new ConcurrentHashMap<>();
+  private static final ReferenceQueue<Object[]> HASHED = new ReferenceQueue<>();      // the collected keys of `HASHES`
+
+  private static final class HashKey extends WeakReference<Object[]> {
+    private final int hash;
+    HashKey(Object[] node, ReferenceQueue<Object[]> queue) { super(node, queue); hash = System.identityHashCode(node); }
+
+    @Override
+    public int hashCode() { return hash; }
+
+    @Override
+    public boolean equals(Object other) {
+      if(other == this) { return true; }
+      var node = get();
+      return node != null && other instanceof HashKey && ((HashKey) other).get() == node;
+    }
+  }
+
+  /**
+   * The same hash as a `java.util.List` with the same elements, computed once per vector. The hash of a list of `n`
+   * elements is `31^n` plus the *polynomial hash* `sum(hash(e_i) * 31^(n - 1 - i))` of its elements, which can be
+   * combined from the polynomial hashes of its parts. These are cached for the nodes in `HASHES`, so only the nodes
+   * that weren't hashed before (such as those on the paths changed since a version that was hashed) are hashed again.
+   */
+  @Override
+  public int hashCode() {
+    int h = hash;
+    if(h == 0) {
+      long r = hash(left.extra, left.extra_start(), left.extra_size);
+      if(left.data != null) { r = combine(r, hash(left.data, left.shift / SHIFT - 1)); }
+      if(middle != null) { r = combine(r, hash(middle.root, middle.height)); }
+      if(right.data != null) { r = combine(r, hash(right.data, right.shift / SHIFT - 1)); }
+      r = combine(r, hash(right.extra, 0, right.extra_size));
+      hash = h = power(31, size()) + (int) r;
+    }
+    return h;
+  }
+
+  /** the number of elements and the polynomial hash of a sequence, packed in a `long` */
+  private static long hash(int size, int hash) { return (long) size << 32 | (hash & 0xffffffffL); }
+
+  /** the (packed) hash of the sequence `a` followed by the sequence `b` */
+  private static long combine(long a, long b) {
+    int b_size = (int) (b >>> 32);
+    return hash((int) (a >>> 32) + b_size, (int) a * power(31, b_size) + (int) b);
+  }
+
+  private static int power(int x, int n) {
+    int result = 1;
+    for(; n > 0; n >>= 1, x *= x) {
+      if((n & 1) != 0) { result *= x; }
+    }
+    return result;
+  }
+
+  /** the (packed) hash of the `count` elements of `array` from `from` */
+  private static long hash(Object[] array, int from, int count) {
+    int h = 0;
+    for(int i = from; i < from + count; i++) { h = 31 * h + Objects.hashCode(array[i]); }
+    return hash(count, h);
+  }
+
+  /** the (packed) hash of the subtree `node` */
+  private static long hash(Object[] node, int height) {
+    if(height == 0) { return hash(node, 0, node.length); }
+    var cached = HASHES.get(new HashKey(node, null));
+    if(cached != null) { return cached; }
+    long result = hash(0, 0);
+    for(int j = 0; j < Middle.children(node); j++) { result = combine(result, hash((Object[]) node[j], height - 1)); }
+    for(Reference<?> r; (r = HASHED.poll()) != null;) { HASHES.remove(r); }
+    HASHES.put(new HashKey(node, HASHED), result);
+    return result;
+  }
+
+  /**
+   * The subtrees of a vector in order, as a stack of (node, height, first element, number of elements); the top is
+   * the subtree at the current position, and can be replaced by its children (`expand`) or skipped.
+   */
+  private static final class Walk {
+    private Object[][] nodes = new Object[16][];
+    private int[] heights = new int[16], froms = new int[16], sizes = new int[16];
+    private boolean[] lefts = new boolean[16];      // nodes of `Left`, where only the first child might not be full
+    int top = -1;
+    int position = 0;                               // the index of the first element of the top subtree
+
+    Walk(Vector<?> v) {
+      var left = v.left;
+      var right = v.right;
+      if(right.extra_size > 0) { push(right.extra, 0, 0, right.extra_size, false); }
+      if(right.data != null) { push(right.data, right.shift / SHIFT - 1, 0, right.data_size, false); }
+      if(v.middle != null) { push(v.middle.root, v.middle.height, 0, v.middle.size, false); }
+      if(left.data != null) { push(left.data, left.shift / SHIFT - 1, 0, left.data_size, true); }
+      if(left.extra_size > 0) { push(left.extra, 0, left.extra_start(), left.extra_size, true); }
+    }
+
+    Object[] node() { return nodes[top]; }
+    int height() { return heights[top]; }
+    int from() { return froms[top]; }
+    int size() { return sizes[top]; }
+
+    private void push(Object[] node, int height, int from, int size, boolean left) {
+      if(++top == nodes.length) {
+        nodes = Arrays.copyOf(nodes, 2 * top);
+        heights = Arrays.copyOf(heights, 2 * top);
+        froms = Arrays.copyOf(froms, 2 * top);
+        sizes = Arrays.copyOf(sizes, 2 * top);
+        lefts = Arrays.copyOf(lefts, 2 * top);
+      }
+      nodes[top] = node;
+      heights[top] = height;
+      froms[top] = from;
+      sizes[top] = size;
+      lefts[top] = left;
+    }
+
+    /** skips the next `n` elements */
+    void skip(int n) {
+      position += n;
+      while(n > 0) {
+        if(n >= sizes[top]) {
+          n -= sizes[top--];
+        } else if(heights[top] > 0) {
+          expand();
+        } else {
+          froms[top] += n;
+          sizes[top] -= n;
+          n = 0;
+        }
+      }
+    }
+
+    /** the leaf at the current position (`from()` is the position of the element within it) */
+    Object[] leaf() {
+      while(heights[top] > 0) { expand(); }
+      return nodes[top];
+    }
+
+    /**
+     * The offset between both vectors (the position in `b` of the element at position 0 in `a`), found by visiting
+     * leaves of both vectors from the start until one of them is found in the other one, or 0 if there's none.
+     */
+    static int alignment(Walk a, Walk b) {
+      var seen_a = new IdentityHashMap<Object[], Integer>();      // the position of the element 0 of a leaf
+      var seen_b = new IdentityHashMap<Object[], Integer>();
+      while(a.top >= 0 || b.top >= 0) {
+        if(a.top >= 0) {
+          var leaf = a.leaf();
+          int base = a.position - a.from();
+          var other = seen_b.get(leaf);
+          if(other != null) { return other - base; }
+          seen_a.put(leaf, base);
+          a.skip(a.size());
+        }
+        if(b.top >= 0) {
+          var leaf = b.leaf();
+          int base = b.position - b.from();
+          var other = seen_a.get(leaf);
+          if(other != null) { return base - other; }
+          seen_b.put(leaf, base);
+          b.skip(b.size());
+        }
+      }
+      return 0;
+    }
+
+    void expand() {
+      var node = nodes[top];
+      int height = heights[top], size = sizes[top];
+      boolean left = lefts[top];
+      top--;
+      var child_sizes = Middle.sizes(node);
+      int n = Middle.children(node), full = 1 << (SHIFT * height);
+      for(int j = n - 1; j >= 0; j--) {
+        int child_size;
+        if(child_sizes != null) {
+          child_size = child_sizes[j] - (j == 0 ? 0 : child_sizes[j - 1]);
+        } else {
+          child_size = j == (left ? 0 : n - 1) ? size - (n - 1) * full : full;
+        }
+        push((Object[]) node[j], height - 1, 0, child_size, left);
+      }
+    }
+  }
+
   private static class VectorIterator<E> implements Iterator<E> {
     private Object[] current;
     private Left<E> left;
+    private Middle middle;
     private Right<E> right;
     private int n = 0;
     private int i = 0;
 
     VectorIterator(Vector<E> v) {
       left = v.left;
+      middle = v.middle;
       right = v.right;
-      if(v.left.extra.length > 0) {
-        current = v.left.extra;
+      if(v.left.extra_size > 0) {
+        current = v.left.tail();
       } else {
         advance();
       }
@@ -88,12 +837,22 @@ public final class Vector<E> implements Iterable<E> {
           n = 0;
         }
       }
+      if(middle != null) {
+        if(n < middle.size) {
+          current = middle.leaf(n);
+          n = n + current.length;
+          return;
+        } else {
+          middle = null;
+          n = 0;
+        }
+      }
       if(right != null) {
         if (n < right.data_size) {
           current = right.get_array(n);
           n = n + SIZE;
         } else {
-          current = right.extra;
+          current = right.tail();
           right = null;
         }
         return;
@@ -119,28 +878,580 @@ public final class Vector<E> implements Iterable<E> {
     }
   }
   @Override
-  public Iterator<E> iterator() { return new VectorIterator<>(this); }
+  public Iterator<E> iterator() { return new VectorIterator<>(this); }
+
+  /** Receives the elements `from` (inclusive) to `to` (exclusive) of a leaf, which must not be modified. */
+  @FunctionalInterface
+  public interface ChunkConsumer {
+    void accept(Object[] leaf, int from, int to);
+  }
+
+  /** Passes all elements to `action`, one leaf at a time, without descending the tries for each leaf. */
+  public void forEachChunk(ChunkConsumer action) {
+    if(left.extra_size > 0) { action.accept(left.extra, left.extra_start(), left.extra.length); }
+    if(left.data != null) { walk(left.data, left.shift / SHIFT - 1, action); }
+    if(middle != null) { walk(middle.root, middle.height, action); }
+    if(right.data != null) { walk(right.data, right.shift / SHIFT - 1, action); }
+    if(right.extra_size > 0) { action.accept(right.extra, 0, right.extra_size); }
+  }
+
+  private static void walk(Object[] node, int height, ChunkConsumer action) {
+    if(height == 0) {
+      action.accept(node, 0, node.length);
+    } else {
+      for(int j = 0, n = Middle.children(node); j < n; j++) { walk((Object[]) node[j], height - 1, action); }
+    }
+  }
+
+  /** Passes the elements `from` (inclusive) to `to` (exclusive) to `action`, one leaf at a time. */
+  public void forEachChunk(int from, int to, ChunkConsumer action) {
+    if(!(0 <= from && from <= to && to <= size())) {
+      throw new IndexOutOfBoundsException("forEachChunk(" + from + ", " + to + ") of size " + size());
+    }
+    while(from < to) {
+      var leaf = leaf(from);
+      int start = leaf_start(from);
+      int end = Math.min(leaf.length, to - start);
+      action.accept(leaf, from - start, end);
+      from = start + end;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public void forEach(Consumer<? super E> action) {
+    forEachChunk((leaf, from, to) -> {
+      for(int i = from; i < to; i++) { action.accept((E) leaf[i]); }
+    });
+  }
+
+  private static final int GRAIN = 1 << 13;       // vectors (and ranges) smaller than this are processed sequentially
+  private static final int FORK_HEIGHT = 3;       // `map` forks a task for each child of nodes at least this high
+
+  /**
+   * Applies `f` to all elements. The result has exactly the same shape as this vector, so it is built bottom-up, one
+   * leaf array at a time; large vectors are mapped in parallel (by subtrees) on the common `ForkJoinPool`.
+   */
+  public <R> Vector<R> map(Function<? super E, ? extends R> f) {
+    return map_leaves(leaf -> map(leaf, f), map(left.tail(), f), map(right.tail(), f));
+  }
+
+  /** a vector of the same shape, with the leaves mapped by `leaves` and the given tails */
+  private <R> Vector<R> map_leaves(UnaryOperator<Object[]> leaves, Object[] left_tail, Object[] right_tail) {
+    boolean parallel = size() > GRAIN;
+    var left_data = left.data == null ? null : new MapTask(left.data, left.shift / SHIFT - 1, leaves, parallel);
+    var middle_root = middle == null ? null : new MapTask(middle.root, middle.height, leaves, parallel);
+    var right_data = right.data == null ? null : new MapTask(right.data, right.shift / SHIFT - 1, leaves, parallel);
+    if(parallel) {
+      for(var task : new MapTask[]{left_data, middle_root}) {
+        if(task != null) { task.fork(); }
+      }
+    }
+    var new_right = new Right<R>(right.data_size, result(right_data, false), right_tail);
+    var new_middle = middle == null ? null : new Middle(result(middle_root, parallel), middle.height, middle.size);
+    var new_left = new Left<R>(left.data_size, result(left_data, parallel), left_tail);
+    return new Vector<>(new_left, new_middle, new_right);
+  }
+
+  private static Object[] result(MapTask task, boolean forked) {
+    if(task == null) { return null; }
+    return forked ? task.join() : task.invoke();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <E, R> Object[] map(Object[] leaf, Function<? super E, ? extends R> f) {
+    if(leaf.length == 0) { return EMPTY_ARRAY; }
+    var result = new Object[leaf.length];
+    for(int i = 0; i < leaf.length; i++) { result[i] = f.apply((E) leaf[i]); }
+    return result;
+  }
+
+  /** Maps the subtree `node`, keeping the sizes of relaxed nodes (which are immutable). */
+  @SuppressWarnings("serial")     // tasks are never serialized
+  private static final class MapTask extends RecursiveTask<Object[]> {
+    private final Object[] node;
+    private final int height;
+    private final UnaryOperator<Object[]> leaves;
+    private final boolean parallel;
+
+    MapTask(Object[] node, int height, UnaryOperator<Object[]> leaves, boolean parallel) {
+      this.node = node;
+      this.height = height;
+      this.leaves = leaves;
+      this.parallel = parallel;
+    }
+
+    @Override
+    protected Object[] compute() {
+      if(height == 0) { return leaves.apply(node); }
+      var result = node.clone();
+      int n = Middle.children(node);
+      if(parallel && height >= FORK_HEIGHT) {
+        var tasks = new ArrayList<MapTask>(n);
+        for(int j = 0; j < n; j++) { tasks.add(new MapTask((Object[]) node[j], height - 1, leaves, true)); }
+        invokeAll(tasks);
+        for(int j = 0; j < n; j++) { result[j] = tasks.get(j).join(); }
+      } else {
+        for(int j = 0; j < n; j++) { result[j] = new MapTask((Object[]) node[j], height - 1, leaves, false).compute(); }
+      }
+      return result;
+    }
+  }
+
+  /** A view of this vector with `f` applied to its elements, one leaf at a time, when they are first read. */
+  public <R> View<R> lazyMap(Function<? super E, ? extends R> f) { return new View<>(this, f); }
+
+  /**
+   * The elements of a vector mapped by a function, which is applied to all elements of a leaf when one of them is
+   * first read; the mapped leaves are kept by the view (and shared by all vectors returned by `force`). Reading a few
+   * elements thus maps only the leaves that contain them. The function may be applied to a leaf more than once when
+   * it is read by several threads at the same time.
+   */
+  public static final class View<E> implements Iterable<E> {
+    private final Vector<?> source;
+    private final Function<Object, ? extends E> f;
+    private final Map<Object[], Object[]> leaves = new ConcurrentHashMap<>();    // arrays have identity `equals`
+    private volatile Object[] left_tail, right_tail;
+
+    @SuppressWarnings("unchecked")
+    private <S> View(Vector<S> source, Function<? super S, ? extends E> f) {
+      this.source = source;
+      this.f = (Function<Object, ? extends E>) f;
+    }
+
+    public int size() { return source.size(); }
+
+    @SuppressWarnings("unchecked")
+    public E get(int i) {
+      if(!(0 <= i && i < size())) { throw new IndexOutOfBoundsException(i); }
+      return (E) leaf(i)[i - source.leaf_start(i)];
+    }
+
+    /** the number of leaves (including the tails) that have been mapped */
+    public int mappedLeaves() { return leaves.size() + (left_tail == null ? 0 : 1) + (right_tail == null ? 0 : 1); }
+
+    /** the mapped vector, which maps the leaves that haven't been read yet */
+    public Vector<E> force() {
+      return source.map_leaves(leaf -> leaves.computeIfAbsent(leaf, this::map), left_tail(), right_tail());
+    }
+
+    /** the mapped leaf containing the element `i` */
+    private Object[] leaf(int i) {
+      if(i < source.left.extra_size) { return left_tail(); }
+      if(i >= size() - source.right.extra_size) { return right_tail(); }
+      var leaf = source.leaf(i);
+      var mapped = leaves.get(leaf);
+      return mapped != null ? mapped : leaves.computeIfAbsent(leaf, this::map);
+    }
+
+    private Object[] left_tail() {
+      var tail = left_tail;
+      return tail != null ? tail : (left_tail = map(source.left.tail()));
+    }
+
+    private Object[] right_tail() {
+      var tail = right_tail;
+      return tail != null ? tail : (right_tail = map(source.right.tail()));
+    }
+
+    private Object[] map(Object[] leaf) { return Vector.map(leaf, f); }
+
+    @Override
+    public Iterator<E> iterator() {
+      return new Iterator<>() {
+        private int i = 0;
+        private Object[] leaf = EMPTY_ARRAY;
+        private int start = 0;
+
+        @Override
+        public boolean hasNext() { return i < size(); }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E next() {
+          if(i == size()) { throw new NoSuchElementException(); }
+          if(i - start == leaf.length) {
+            leaf = leaf(i);
+            start = i;
+          }
+          return (E) leaf[i++ - start];
+        }
+      };
+    }
+  }
+
+  /** The elements that satisfy `p`, in parallel for large vectors. */
+  @SuppressWarnings("unchecked")
+  public Vector<E> filter(Predicate<? super E> p) {
+    return assemble(split((from, to) -> chunk(from, to, (e, out) -> {
+      if(p.test((E) e)) { out.add(e); }
+    }), Vector::concat_lists));
+  }
+
+  /** The elements of `f(e)` for all elements `e`, in parallel for large vectors. */
+  @SuppressWarnings("unchecked")
+  public <R> Vector<R> flatMap(Function<? super E, ? extends Iterable<? extends R>> f) {
+    return assemble(split((from, to) -> chunk(from, to, (e, out) -> {
+      for(var r : f.apply((E) e)) { out.add(r); }
+    }), Vector::concat_lists));
+  }
+
+  /** Combines all elements with `op`, which must be associative (with `identity` as its identity). */
+  @SuppressWarnings("unchecked")
+  public E reduce(E identity, BinaryOperator<E> op) {
+    return split((from, to) -> {
+      var result = new Object[]{identity};
+      forEachChunk(from, to, (leaf, i, j) -> {
+        for(; i < j; i++) { result[0] = op.apply((E) result[0], (E) leaf[i]); }
+      });
+      return (E) result[0];
+    }, op);
+  }
+
+  /** Combines all elements from the first to the last, so (unlike `reduce`) it is always sequential. */
+  @SuppressWarnings("unchecked")
+  public <A> A foldLeft(A zero, BiFunction<A, ? super E, A> op) {
+    var result = new Object[]{zero};
+    forEachChunk((leaf, i, j) -> {
+      for(; i < j; i++) { result[0] = op.apply((A) result[0], (E) leaf[i]); }
+    });
+    return (A) result[0];
+  }
+
+  private interface RangeFunction<T> { T apply(int from, int to); }
+
+  /** Applies `f` to ranges of elements along subtrees (on the common `ForkJoinPool`) and combines the results. */
+  private <T> T split(RangeFunction<T> f, BinaryOperator<T> combine) {
+    if(size() <= GRAIN) { return f.apply(0, size()); }
+    return ForkJoinPool.commonPool().invoke(new SplitTask<>(this, 0, size(), f, combine));
+  }
+
+  @SuppressWarnings("serial")     // tasks are never serialized
+  private static final class SplitTask<T> extends RecursiveTask<T> {
+    private final Vector<?> vector;
+    private final int from;
+    private final int to;
+    private final RangeFunction<T> f;
+    private final BinaryOperator<T> combine;
+
+    SplitTask(Vector<?> vector, int from, int to, RangeFunction<T> f, BinaryOperator<T> combine) {
+      this.vector = vector;
+      this.from = from;
+      this.to = to;
+      this.f = f;
+      this.combine = combine;
+    }
+
+    @Override
+    protected T compute() {
+      int n = to - from;
+      if(n <= GRAIN) { return f.apply(from, to); }
+      int block = SIZE;
+      while(block << SHIFT <= n / 2) { block <<= SHIFT; }
+      int split = vector.split_point(from + n / 2, block);
+      if(split <= from || split >= to) { split = from + n / 2; }
+      var first = new SplitTask<>(vector, from, split, f, combine);
+      first.fork();
+      var second = new SplitTask<>(vector, split, to, f, combine).compute();
+      return combine.apply(first.join(), second);
+    }
+  }
+
+  private interface ChunkFunction { void apply(Object e, List<Object> out); }
+
+  /** the results of `f` for the elements `from` to `to`, as a list of arrays */
+  private List<Object[]> chunk(int from, int to, ChunkFunction f) {
+    var out = new ArrayList<>();
+    forEachChunk(from, to, (leaf, i, j) -> {
+      for(; i < j; i++) { f.apply(leaf[i], out); }
+    });
+    var result = new ArrayList<Object[]>();
+    result.add(out.toArray());
+    return result;
+  }
+
+  private static List<Object[]> concat_lists(List<Object[]> first, List<Object[]> second) {
+    first.addAll(second);
+    return first;
+  }
+
+  private static <R> Vector<R> assemble(List<Object[]> parts) {
+    int n = 0;
+    for(var part : parts) { n += part.length; }
+    var elements = new Object[n];
+    n = 0;
+    for(var part : parts) {
+      System.arraycopy(part, 0, elements, n, part.length);
+      n += part.length;
+    }
+    return build(elements, 0, elements.length);
+  }
+
+  public Cursor<E> cursor(int index) { return new Cursor<>(this, index); }
+
+  /**
+   * A `ListIterator` that can start at (and `seek` to) any index. All parts of the vector are treated as `Middle`
+   * trees; the cursor keeps the path from the root of the current one to the current leaf, so moving to an adjacent
+   * leaf only touches the levels that change, which takes `O(1)` amortized time.
+   */
+  public static final class Cursor<E> implements ListIterator<E> {
+    private final Middle[] parts;
+    private final int[] starts;       // the index of the first element of each part
+    private final int size;
+    private final Object[][] nodes;   // the path to `leaf`, by height
+    private final int[] indexes;      // the index of the child on the path in each of `nodes`
+    private int part;
+    private Object[] leaf = EMPTY_ARRAY;
+    private int leaf_start = 0;
+    private int index;
+
+    private Cursor(Vector<E> v, int index) {
+      this.parts = Stream.of(
+          Middle.leaf(v.left.tail()), v.left.middle(), v.middle, v.right.middle(), Middle.leaf(v.right.tail())
+      ).filter(m -> m != null).toArray(Middle[]::new);
+      this.starts = new int[this.parts.length];
+      int height = 0;
+      for(int i = 1; i < this.parts.length; i++) { starts[i] = starts[i - 1] + this.parts[i - 1].size; }
+      for(var m : this.parts) { height = Math.max(height, m.height); }
+      this.size = v.size();
+      this.nodes = new Object[height + 1][];
+      this.indexes = new int[height + 1];
+      seek(index);
+    }
+
+    /** moves the cursor before the element `index` */
+    public Cursor<E> seek(int index) {
+      if(!(0 <= index && index <= size)) { throw new IndexOutOfBoundsException(index); }
+      this.index = index;
+      return this;
+    }
+
+    /** loads the leaf containing the element `i` by descending from the root of its part */
+    private void load(int i) {
+      part = parts.length - 1;
+      while(starts[part] > i) { part--; }
+      var node = parts[part].root;
+      int rest = i - starts[part];
+      for(int h = parts[part].height; h > 0; h--) {
+        int j = Middle.child(node, h, rest);
+        rest -= Middle.offset(node, h, j);
+        nodes[h] = node;
+        indexes[h] = j;
+        node = (Object[]) node[j];
+      }
+      leaf = node;
+      leaf_start = i - rest;
+    }
+
+    /** moves to the next (`direction == 1`) or previous (`direction == -1`) leaf */
+    private void step(int direction) {
+      int h = 1;
+      while(h <= parts[part].height) {
+        int j = indexes[h] + direction;
+        if(0 <= j && j < Middle.children(nodes[h])) { break; }
+        h++;
+      }
+      Object[] node;
+      if(h > parts[part].height) {
+        part += direction;
+        h = parts[part].height;
+        node = parts[part].root;
+      } else {
+        indexes[h] += direction;
+        node = (Object[]) nodes[h][indexes[h]];
+        h--;
+      }
+      for(; h > 0; h--) {
+        nodes[h] = node;
+        indexes[h] = direction > 0 ? 0 : Middle.children(node) - 1;
+        node = (Object[]) node[indexes[h]];
+      }
+      leaf_start = direction > 0 ? leaf_start + leaf.length : leaf_start - node.length;
+      leaf = node;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E element(int i) {
+      if(i == leaf_start + leaf.length && leaf.length > 0) {
+        step(1);
+      } else if(i == leaf_start - 1) {
+        step(-1);
+      } else if(i < leaf_start || i >= leaf_start + leaf.length) {
+        load(i);
+      }
+      return (E) leaf[i - leaf_start];
+    }
+
+    @Override
+    public boolean hasNext() { return index < size; }
+
+    @Override
+    public E next() {
+      if(index >= size) { throw new NoSuchElementException(); }
+      return element(index++);
+    }
+
+    @Override
+    public boolean hasPrevious() { return index > 0; }
+
+    @Override
+    public E previous() {
+      if(index <= 0) { throw new NoSuchElementException(); }
+      return element(--index);
+    }
+
+    @Override
+    public int nextIndex() { return index; }
+
+    @Override
+    public int previousIndex() { return index - 1; }
+
+    @Override
+    public void remove() { throw new UnsupportedOperationException("remove"); }
+
+    @Override
+    public void set(E e) { throw new UnsupportedOperationException("set"); }
+
+    @Override
+    public void add(E e) { throw new UnsupportedOperationException("add"); }
+  }
+
+  /** the leaf (or `extra`) that contains the element `i` */
+  private Object[] leaf(int i) {
+    if(i < left.extra_size) { return left.tail(); }
+    i -= left.extra_size;
+    if(i < left.data_size) { return left.get_array(i); }
+    i -= left.data_size;
+    if(middle != null) {
+      if(i < middle.size) { return middle.leaf(i); }
+      i -= middle.size;
+    }
+    return i < right.data_size ? right.get_array(i) : right.tail();
+  }
+
+  /** the index of the first element of `leaf(i)` */
+  private int leaf_start(int i) {
+    int left_size = left.extra_size + left.data_size;
+    if(i < left.extra_size) { return 0; }
+    if(i < left_size) { return i - ((i - left.extra_size) & MASK); }
+    int right_start = middle == null ? left_size : left_size + middle.size;
+    if(i < right_start) { return left_size + middle.leaf_start(i - left_size); }
+    if(i - right_start < right.data_size) { return right_start + ((i - right_start) & ~MASK); }
+    return right_start + right.data_size;
+  }
+
+  /**
+   * A position close to `i`, where a spliterator should be split. Unless the position is in the middle part, it is a
+   * multiple of `block` elements away from the end of `left.data` or the start of `right.data`, so that the splits
+   * follow the subtrees of the halves.
+   */
+  private int split_point(int i, int block) {
+    int left_size = left.extra_size + left.data_size;
+    int right_start = middle == null ? left_size : left_size + middle.size;
+    if(i < left_size) { return left_size - (left_size - i) / block * block; }
+    if(i < right_start) { return leaf_start(i); }
+    return right_start + (i - right_start) / block * block;
+  }
+
+  /** Splits the vector first between its parts, then along the subtrees of the tries, and iterates whole leaves. */
+  private static class VectorSpliterator<E> implements Spliterator<E> {
+    private final Vector<E> vector;
+    private int index;
+    private final int end;
+    private Object[] leaf = EMPTY_ARRAY;
+    private int leaf_start = 0;
+
+    VectorSpliterator(Vector<E> vector, int index, int end) {
+      this.vector = vector;
+      this.index = index;
+      this.end = end;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean tryAdvance(Consumer<? super E> action) {
+      if(index >= end) { return false; }
+      if(index - leaf_start >= leaf.length) {
+        leaf = vector.leaf(index);
+        leaf_start = vector.leaf_start(index);
+      }
+      action.accept((E) leaf[index++ - leaf_start]);
+      return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void forEachRemaining(Consumer<? super E> action) {
+      while(index < end) {
+        if(index - leaf_start >= leaf.length) {
+          leaf = vector.leaf(index);
+          leaf_start = vector.leaf_start(index);
+        }
+        int to = Math.min(leaf.length, end - leaf_start);
+        for(int i = index - leaf_start; i < to; i++) { action.accept((E) leaf[i]); }
+        index = leaf_start + to;
+      }
+    }
+
+    @Override
+    public Spliterator<E> trySplit() {
+      int n = end - index;
+      if(n < 2 * SIZE) { return null; }
+      int split = -1;
+      int left_size = vector.left.extra_size + vector.left.data_size;
+      int right_start = vector.middle == null ? left_size : left_size + vector.middle.size;
+      for(int boundary : new int[]{left_size, right_start}) {
+        if(index + n / 4 <= boundary && boundary <= end - n / 4) { split = boundary; }
+      }
+      if(split < 0) {
+        int block = SIZE;
+        while(block << SHIFT <= n / 2) { block <<= SHIFT; }
+        split = vector.split_point(index + n / 2, block);
+        if(split <= index || split >= end) { split = index + n / 2; }
+      }
+      var prefix = new VectorSpliterator<>(vector, index, split);
+      index = split;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() { return end - index; }
+
+    @Override
+    public int characteristics() { return ORDERED | SIZED | SUBSIZED | IMMUTABLE; }
+  }
+
+  @Override
+  public Spliterator<E> spliterator() { return new VectorSpliterator<>(this, 0, size()); }
+
+  public Stream<E> stream() { return StreamSupport.stream(spliterator(), false); }
+  public Stream<E> parallelStream() { return StreamSupport.stream(spliterator(), true); }
 
   private <A extends Half<E, A, B>, B extends Half<E, B, A>> Vector<E> push(E e, A other, B to) {
-    if(to.extra.length == SIZE && to.data_size >= (1 << to.shift) && other.shift < to.shift) {
+    if(Instrumentation.ENABLED) { Instrumentation.operation(); }
+    if(middle == null && to.extra_size == SIZE && to.data_size >= (1 << to.shift) && other.shift < to.shift) {
       if(other.data == null) {
+        if(Instrumentation.ENABLED) { Instrumentation.move("move", to instanceof Left, to.data_size); }
         return to.vector(
-            other.make(SIZE, to.data, other.extra),
+            other.make(SIZE, to.data),
+            null,
             to.make(SIZE, to.extra, new Object[]{e})
         );
       } else {
+        if(Instrumentation.ENABLED) { Instrumentation.move("split", to instanceof Left, to.data_size / 2); }
         var split = to.split(
             other.data,
             to.data,
             single(to.shift - SHIFT, to.extra)
         );
         return to.vector(
-            other.make(other.data_size + to.data_size / 2, split.left, other.extra),
+            other.make(other.data_size + to.data_size / 2, split.left),
+            null,
             to.make(to.data_size / 2 + SIZE, split.right, new Object[]{e})
         );
       }
     } else {
-      return to.vector(other, to.push(e));
+      return to.vector(other, middle, to.push(e));
     }
   }
 
@@ -149,19 +1460,22 @@ public final class Vector<E> implements Iterable<E> {
 
 
   private <A extends Half<E, A, B>, B extends Half<E, B, A>> Vector<E> pop(A other, B from) {
-    if(from.extra.length <= 1) {         // will change `data`
+    if(Instrumentation.ENABLED) { Instrumentation.operation(); }
+    if(middle != null) { return pop_middle(other, from); }
+    if(from.extra_size <= 1) {         // will change `data`
       if (other.shift > from.shift) {   // need to take care of maintaining invariant
         if(from.data_size == SIZE || from.data_size == (1 << (from.shift - SHIFT)) + SIZE) {
           // would reduce `from.depth` and break the invariant
           Object[] other_data, from_data;
           Object[] from_extra = from.shift == SHIFT ? from.data : from.end();
-          if(from.extra.length == 0) {
+          if(from.extra_size == 0) {
             from_extra = from.pop(from_extra);
           }
           int moved;
           if(other.data.length == 2 && ((Object[]) other.data[other.end_index(other.data)]).length == 1) {
             // naively moving data from `other` to `from` would break the invariant in the *other* direction
             moved = (1 << (other.shift - SHIFT)) / 2;
+            if(Instrumentation.ENABLED) { Instrumentation.move("split", other instanceof Left, moved); }
             var split = from.split(
                 ((Object[]) other.data[other.end_index(other.data)])[0],
                 (Object[]) other.data[other.start_index(other.data)],
@@ -177,6 +1491,7 @@ public final class Vector<E> implements Iterable<E> {
               other_data = from.pop(other.data);
             }
             moved = 1 << (other.shift - SHIFT);
+            if(Instrumentation.ENABLED) { Instrumentation.move("steal", other instanceof Left, moved); }
             if (from.shift == SHIFT) {
               from_data = (Object[]) other.data[other.start_index(other.data)];
             } else {
@@ -187,27 +1502,51 @@ public final class Vector<E> implements Iterable<E> {
             }
           }
           return from.vector(
-              other.make(other.data_size - moved, other_data, other.extra),
+              other.make(other.data_size - moved, other_data),
+              null,
               from.make(from.data_size + moved - SIZE, from_data, from_extra)
           );
-        } else if(from.extra.length + from.shift == 0) {      // we're popping from an empty half, take data from the other half
+        } else if(from.extra_size + from.shift == 0) {
+          // we're popping from an empty half, take data from the other half
+          if(Instrumentation.ENABLED) { Instrumentation.move("steal", other instanceof Left, other.data_size); }
           return from.vector(
-              other.make(0, null, other.extra),
+              other.make(0, null),
+              null,
               from.make(0, null, from.pop(other.data))
           );
         }
-      } else if(from.extra.length + from.shift == 0 && other.shift == 0) {
-        if(other.extra.length > 0) {
+      } else if(from.extra_size + from.shift == 0 && other.shift == 0) {
+        if(other.extra_size > 0) {
           return from.vector(
               other.make(0, null, EMPTY_ARRAY),
-              from.make(0, null, from.pop(other.extra))
+              null,
+              from.make(0, null, from.pop(other.tail()))
           );
         } else {
           throw new IllegalStateException("empty vector");
         }
       }
     }
-    return from.vector(other, from.pop());
+    return from.vector(other, null, from.pop());
+  }
+
+  /**
+   * Pops from a vector with a `middle`; the halves don't need to satisfy the invariant then, so they never exchange
+   * data. When `from` is empty, it takes the adjacent leaf of `middle`. When `middle` runs out and the halves are too
+   * unbalanced, the data of `other` becomes the new `middle`.
+   */
+  private <A extends Half<E, A, B>, B extends Half<E, B, A>> Vector<E> pop_middle(A other, B from) {
+    if(from.extra_size + from.data_size > 0) {
+      return from.vector(other, middle, from.pop());
+    }
+    var popped = from.make(0, null, from.pop(from.end(middle)));
+    var rest = from.pop(middle);
+    if(rest != null || other.shift <= SHIFT) {
+      return from.vector(other, rest, popped);
+    } else {
+      if(Instrumentation.ENABLED) { Instrumentation.move("middle", other instanceof Left, other.data_size); }
+      return from.vector(other.make(0, null), other.middle(), popped);
+    }
   }
 
   public Vector<E> pop_right() { return pop(left, right); }
@@ -220,26 +1559,803 @@ public final class Vector<E> implements Iterable<E> {
     return array;
   }
 
+  /**
+   * The tag of a leaf owned by a transient. The tag of an owned node is the array of the tags of its children (at the
+   * same indices), and arrays that aren't owned have no tag (`null`). As a transient copies a node before it copies
+   * any of its children, the tags of its tries are trees with the same shape as their owned parts.
+   */
+  private static final Object[] OWNED = new Object[0];
+
+  /**
+   * Returns `array` if it's owned by a transient, i.e. if its tag `tags[t]` isn't `null`, or a copy that is then
+   * owned by it. Without `tags` (outside of a transient), nothing is owned.
+   */
+  private static Object[] editable(Object[] array, boolean leaf, Object[] tags, int t) {
+    if(tags == null) { return copied(array.clone()); }
+    if(tags[t] != null) { return array; }
+    var copy = copied(array.clone());
+    tags[t] = leaf ? OWNED : new Object[copy.length];
+    return copy;
+  }
+
+  /** the tags of the children of the node tagged `tags[t]` */
+  private static Object[] child_tags(Object[] tags, int t) { return tags == null ? null : (Object[]) tags[t]; }
+
+  /** counts a copied array (when the instrumentation is enabled) */
+  private static Object[] copied(Object[] array) {
+    if(Instrumentation.ENABLED) { Instrumentation.copied(array.length); }
+    return array;
+  }
+
+  public Transient<E> asTransient() { return new Transient<>(this); }
+
+  /**
+   * A mutable vector, modeled after Clojure's `TransientVector`.
+   *
+   * Arrays shared with persistent vectors are copied the first time they are modified and are then owned by the
+   * transient, which modifies them in place afterwards; owned arrays are tagged, in trees of `tags` that mirror the
+   * tries (like the owner of the nodes of Clojure's vectors, but without a field in every array). Both tails are kept
+   * in buffers of length `SIZE`, so pushing and popping only touches the tree once every `SIZE` elements. The leaf of
+   * the last update stays in *focus*, so clustered updates (and reads) within it take `O(1)` time. Rare operations
+   * that move data between the halves are delegated to the persistent implementation. A transient is not thread-safe
+   * and cannot be used anymore after `persistent()` is called.
+   */
+  public static final class Transient<E> {
+    private static final int LEFT = 0, MIDDLE = 1, RIGHT = 2;
+    private final Object[] tags = new Object[3];      // the tags of `left.data`, `middle.root` and `right.data`
+    private boolean editable = true;
+    // `extra` of both halves is always empty, the elements are in `left_tail` (aligned right) and `right_tail`
+    private Left<E> left;
+    private Middle middle;
+    private Right<E> right;
+    private Object[] left_tail = new Object[SIZE];
+    private Object[] right_tail = new Object[SIZE];
+    private int left_length;
+    private int right_length;
+    // the leaf (owned by the transient) of the last update of `left.data`, `middle` or `right.data`, and the indices
+    // of its first and last element, so that updates and reads close to the last update don't descend the tries
+    private Object[] focus;
+    private int focus_start;
+    private int focus_end;
+
+    private Transient(Vector<E> v) { load(v); }
+
+    private void load(Vector<E> v) {
+      // arrays owned by the transient can only be reached from the tries whose roots didn't change
+      if(left == null || v.left.data != left.data) { tags[LEFT] = null; }
+      if(middle == null || v.middle == null || v.middle.root != middle.root) { tags[MIDDLE] = null; }
+      if(right == null || v.right.data != right.data) { tags[RIGHT] = null; }
+      focus = null;
+      focus_start = focus_end = 0;
+      left = v.left.make(v.left.data_size, v.left.data, EMPTY_ARRAY);
+      middle = v.middle;
+      right = v.right.make(v.right.data_size, v.right.data, EMPTY_ARRAY);
+      left_length = v.left.extra_size;
+      right_length = v.right.extra_size;
+      Arrays.fill(left_tail, null);
+      Arrays.fill(right_tail, null);
+      System.arraycopy(v.left.extra, v.left.extra_start(), left_tail, SIZE - left_length, left_length);
+      System.arraycopy(v.right.extra, 0, right_tail, 0, right_length);
+    }
+
+    private Vector<E> vector() {
+      return new Vector<>(
+          left.make(left.data_size, left.data, Arrays.copyOfRange(left_tail, SIZE - left_length, SIZE)),
+          middle,
+          right.make(right.data_size, right.data, Arrays.copyOf(right_tail, right_length))
+      );
+    }
+
+    private void ensure_editable() {
+      if(!editable) { throw new IllegalStateException("transient used after persistent() call"); }
+    }
+
+    public Vector<E> persistent() {
+      ensure_editable();
+      editable = false;
+      Arrays.fill(tags, null);
+      return vector();
+    }
+
+    public int size() {
+      int size = left_length + left.data_size + right.data_size + right_length;
+      return middle == null ? size : size + middle.size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(int i) {
+      ensure_editable();
+      if(!(0 <= i && i < size())) { throw new IndexOutOfBoundsException(i); }
+      if(focus_start <= i && i < focus_end) { return (E) focus[i - focus_start]; }
+      if(i < left_length) { return (E) left_tail[SIZE - left_length + i]; }
+      i -= left_length;
+      if(i < left.data_size) { return (E) left.get(i); }
+      i -= left.data_size;
+      if(middle != null) {
+        if(i < middle.size) { return (E) middle.get(i); }
+        i -= middle.size;
+      }
+      return (E) (i < right.data_size ? right.get(i) : right_tail[i - right.data_size]);
+    }
+
+    public Transient<E> update(int i, E element) {
+      ensure_editable();
+      if(!(0 <= i && i < size())) { throw new IndexOutOfBoundsException(i); }
+      if(focus_start <= i && i < focus_end) {
+        focus[i - focus_start] = element;
+        return this;
+      }
+      int index = i;
+      if(i < left_length) {
+        left_tail[SIZE - left_length + i] = element;
+        return this;
+      }
+      i -= left_length;
+      if(i < left.data_size) {
+        int j = i + (1 << left.shift) - left.data_size;
+        var data = left.update_array(left.data, left.shift, j, element, tags, LEFT);
+        if(data != left.data) { left = left.make(left.data_size, data, EMPTY_ARRAY); }
+        focus(left.get_array(i), index - (i & MASK));
+        return this;
+      }
+      i -= left.data_size;
+      if(middle != null) {
+        if(i < middle.size) {
+          middle = middle.update(i, element, tags, MIDDLE);
+          focus(middle.leaf(i), index - i + middle.leaf_start(i));
+          return this;
+        }
+        i -= middle.size;
+      }
+      if(i < right.data_size) {
+        var data = right.update_array(right.data, right.shift, i, element, tags, RIGHT);
+        if(data != right.data) { right = right.make(right.data_size, data, EMPTY_ARRAY); }
+        focus(right.get_array(i), index - (i & MASK));
+      } else {
+        right_tail[i - right.data_size] = element;
+      }
+      return this;
+    }
+
+    private void focus(Object[] leaf, int start) {
+      focus = leaf;
+      focus_start = start;
+      focus_end = start + leaf.length;
+    }
+
+    /** keeps the focus on the same elements after `n` elements were added to (or removed from) the left end */
+    private void move_focus(int n) {
+      if(focus != null) {
+        focus_start += n;
+        focus_end += n;
+      }
+    }
+
+    public Transient<E> push_right(E e) {
+      ensure_editable();
+      if(right_length < SIZE) {
+        right_tail[right_length++] = e;
+      } else if(right.data_size >= (1 << right.shift) && left.shift < right.shift) {
+        load(vector().push_right(e));     // moves data to the other half
+      } else {
+        right = right.make(right.data_size + SIZE, right.push_data(right_tail, tags, RIGHT), EMPTY_ARRAY);
+        right_tail = new Object[SIZE];
+        right_tail[0] = e;
+        right_length = 1;
+      }
+      return this;
+    }
+
+    public Transient<E> push_left(E e) {
+      ensure_editable();
+      if(left_length < SIZE) {
+        left_tail[SIZE - ++left_length] = e;
+      } else if(left.data_size >= (1 << left.shift) && right.shift < left.shift) {
+        load(vector().push_left(e));      // moves data to the other half
+      } else {
+        left = left.make(left.data_size + SIZE, left.push_data(left_tail, tags, LEFT), EMPTY_ARRAY);
+        left_tail = new Object[SIZE];
+        left_tail[SIZE - 1] = e;
+        left_length = 1;
+      }
+      move_focus(1);
+      return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void push_right_all(Object[] array) {
+      int i = 0;
+      while(i < array.length) {
+        if(right_length < SIZE) {
+          int n = Math.min(SIZE - right_length, array.length - i);
+          System.arraycopy(array, i, right_tail, right_length, n);
+          right_length += n;
+          i += n;
+        } else {
+          push_right((E) array[i++]);
+        }
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void push_left_all(Object[] array) {
+      int i = array.length;
+      while(i > 0) {
+        if(left_length < SIZE) {
+          int n = Math.min(SIZE - left_length, i);
+          System.arraycopy(array, i - n, left_tail, SIZE - left_length - n, n);
+          left_length += n;
+          i -= n;
+          move_focus(n);
+        } else {
+          push_left((E) array[--i]);
+        }
+      }
+    }
+
+    public Transient<E> pop_right() {
+      ensure_editable();
+      if(right_length > 1) {
+        right_tail[--right_length] = null;
+      } else {
+        load(vector().pop_right());       // changes `data`, possibly of both halves
+      }
+      return this;
+    }
+
+    public Transient<E> pop_left() {
+      ensure_editable();
+      if(left_length > 1) {
+        left_tail[SIZE - left_length--] = null;
+      } else {
+        load(vector().pop_left());        // changes `data`, possibly of both halves
+      }
+      move_focus(-1);
+      return this;
+    }
+  }
+
+  private static final int LEAF = 1, NODE = 2, RELAXED = 3, FORGET = 4, VERSION = 5;    // records of `DeltaWriter`
+  private static final int DELTA_HEADER = 0x31544c44;     // "DLT1", followed by `SHIFT`
+
+  /**
+   * Writes successive versions of vectors to a stream, for a `DeltaReader`. Each trie node is written only once, the
+   * first time it appears in a version; later versions refer to it by its id (the number of nodes written before it).
+   * As versions share most of their nodes, writing a version takes time and space proportional to the changes since
+   * the versions written before. Nodes that are garbage collected are forgotten (by both the writer and the reader).
+   * The stream starts with a header that records `SHIFT`, as the nodes can only be read with the same branching factor.
+   */
+  public static final class DeltaWriter<E> {
+    private static final class Id extends WeakReference<Object[]> {
+      final int id;
+      Id(Object[] node, int id, ReferenceQueue<Object[]> queue) { super(node, queue); this.id = id; }
+    }
+
+    private final DataOutputStream out;
+    private final MappedVector.Codec<? super E> codec;
+    private final Map<Object[], Integer> ids = new WeakHashMap<>();     // arrays have identity `equals`
+    private final Set<Id> references = new HashSet<>();
+    private final ReferenceQueue<Object[]> collected = new ReferenceQueue<>();
+    private int next_id = 0;
+    private boolean started = false;
+
+    public DeltaWriter(OutputStream out, MappedVector.Codec<? super E> codec) {
+      this.out = new DataOutputStream(out);
+      this.codec = codec;
+    }
+
+    public void write(Vector<E> v) throws IOException {
+      if(!started) {
+        out.writeInt(DELTA_HEADER);
+        out.writeByte(SHIFT);
+        started = true;
+      }
+      for(Reference<?> r; (r = collected.poll()) != null;) {
+        references.remove(r);
+        out.writeByte(FORGET);
+        out.writeInt(((Id) r).id);
+      }
+      int left = v.left.data == null ? -1 : node(v.left.data, v.left.shift / SHIFT - 1);
+      int middle = v.middle == null ? -1 : node(v.middle.root, v.middle.height);
+      int right = v.right.data == null ? -1 : node(v.right.data, v.right.shift / SHIFT - 1);
+      out.writeByte(VERSION);
+      out.writeInt(v.left.data_size);
+      out.writeInt(left);
+      elements(v.left.tail());
+      out.writeInt(middle);
+      if(middle >= 0) {
+        out.writeInt(v.middle.height);
+        out.writeInt(v.middle.size);
+      }
+      out.writeInt(v.right.data_size);
+      out.writeInt(right);
+      elements(v.right.tail());
+      out.flush();
+    }
+
+    /** writes `node` and all its descendants that weren't written yet, children first, and returns its id */
+    private int node(Object[] node, int height) throws IOException {
+      var id = ids.get(node);
+      if(id != null) { return id; }
+      if(height == 0) {
+        out.writeByte(LEAF);
+        elements(node);
+      } else {
+        int n = Middle.children(node);
+        var children = new int[n];
+        for(int j = 0; j < n; j++) { children[j] = node((Object[]) node[j], height - 1); }
+        var sizes = Middle.sizes(node);
+        out.writeByte(sizes == null ? NODE : RELAXED);
+        out.writeInt(n);
+        for(int j = 0; j < n; j++) { out.writeInt(children[j]); }
+        if(sizes != null) {
+          for(int size : sizes) { out.writeInt(size); }
+        }
+      }
+      ids.put(node, next_id);
+      references.add(new Id(node, next_id, collected));
+      return next_id++;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void elements(Object[] array) throws IOException {
+      out.writeInt(array.length);
+      for(var e : array) {
+        if(e == null) {
+          out.writeInt(-1);
+        } else {
+          var bytes = ((MappedVector.Codec<Object>) codec).encode(e);
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+      }
+    }
+  }
+
+  /** Reads the versions written by a `DeltaWriter`, sharing the nodes that they have in common. */
+  public static final class DeltaReader<E> {
+    private final DataInputStream in;
+    private final MappedVector.Codec<? extends E> codec;
+    private final Map<Integer, Object[]> nodes = new HashMap<>();
+    private int next_id = 0;
+    private boolean started = false;
+
+    public DeltaReader(InputStream in, MappedVector.Codec<? extends E> codec) {
+      this.in = new DataInputStream(in);
+      this.codec = codec;
+    }
+
+    /** the next version; throws `EOFException` at the end of the stream */
+    public Vector<E> read() throws IOException {
+      if(!started) {
+        if(in.readInt() != DELTA_HEADER) { throw new IOException("not a stream of a DeltaWriter"); }
+        int shift = in.readByte();
+        if(shift != SHIFT) {
+          throw new IOException("the stream was written with experiment.vector.shift=" + shift + ", not " + SHIFT);
+        }
+        started = true;
+      }
+      while(true) {
+        int tag = in.readByte();
+        switch(tag) {
+          case LEAF -> nodes.put(next_id++, elements());
+          case NODE, RELAXED -> {
+            int n = in.readInt();
+            var node = new Object[tag == RELAXED ? n + 1 : n];
+            for(int j = 0; j < n; j++) { node[j] = node(in.readInt()); }
+            if(tag == RELAXED) {
+              var sizes = new int[n];
+              for(int j = 0; j < n; j++) { sizes[j] = in.readInt(); }
+              node[n] = sizes;
+            }
+            nodes.put(next_id++, node);
+          }
+          case FORGET -> nodes.remove(in.readInt());
+          case VERSION -> {
+            int left_size = in.readInt();
+            var left = new Left<E>(left_size, node(in.readInt()), elements());
+            int middle_root = in.readInt();
+            var middle = middle_root < 0 ? null : new Middle(node(middle_root), in.readInt(), in.readInt());
+            int right_size = in.readInt();
+            var right = new Right<E>(right_size, node(in.readInt()), elements());
+            return new Vector<>(left, middle, right);
+          }
+          default -> throw new IOException("unexpected tag " + tag);
+        }
+      }
+    }
+
+    private Object[] node(int id) throws IOException {
+      if(id < 0) { return null; }
+      var node = nodes.get(id);
+      if(node == null) { throw new IOException("unknown node " + id); }
+      return node;
+    }
+
+    private Object[] elements() throws IOException {
+      var array = new Object[in.readInt()];
+      for(int i = 0; i < array.length; i++) {
+        int length = in.readInt();
+        if(length >= 0) { array[i] = codec.decode(in.readNBytes(length)); }
+      }
+      return array.length == 0 ? EMPTY_ARRAY : array;
+    }
+  }
+
+  /**
+   * A relaxed radix balanced tree (RRB-tree), holding the middle part of a concatenated vector. Leaves (`height == 0`)
+   * hold between 1 and `SIZE` elements. Inner nodes are either *regular*, like the nodes of `Right`, with all children
+   * full except the last one, or *relaxed*, storing the cumulative sizes of their children in an additional `int[]`
+   * in the last slot.
+   */
+  private record Middle(Object[] root, int height, int size) {
+    static Middle leaf(Object[] array) { return array.length == 0 ? null : new Middle(array, 0, array.length); }
+
+    private static int[] sizes(Object[] node) { return node[node.length - 1] instanceof int[] sizes ? sizes : null; }
+    private static int children(Object[] node) { return sizes(node) == null ? node.length : node.length - 1; }
+
+    private static int size(Object[] node, int height) {
+      if(height == 0) { return node.length; }
+      var sizes = sizes(node);
+      if(sizes != null) { return sizes[sizes.length - 1]; }
+      return ((node.length - 1) << (SHIFT * height)) + size((Object[]) node[node.length - 1], height - 1);
+    }
+
+    /** the index of the child of `node` that contains the element `i` */
+    private static int child(Object[] node, int height, int i) {
+      int j = i >> (SHIFT * height);
+      var sizes = sizes(node);
+      if(sizes != null) {
+        while(sizes[j] <= i) { j++; }
+      }
+      return j;
+    }
+
+    /** the number of elements in the children of `node` before the child `j` */
+    private static int offset(Object[] node, int height, int j) {
+      if(j == 0) { return 0; }
+      var sizes = sizes(node);
+      return sizes == null ? j << (SHIFT * height) : sizes[j - 1];
+    }
+
+    /** creates a node of the given height, relaxed unless all `children` but the last are full */
+    private static Object[] node(Object[] children, int height) {
+      var sizes = new int[children.length];
+      int size = 0;
+      for(int j = 0; j < children.length; j++) {
+        size += size((Object[]) children[j], height - 1);
+        sizes[j] = size;
+      }
+      return node(children, sizes, height);
+    }
+
+    /** creates a node from `children` whose cumulative `sizes` are known, in `O(SIZE)` time */
+    private static Object[] node(Object[] children, int[] sizes, int height) {
+      int n = children.length;
+      for(int j = 0; j < n - 1; j++) {
+        if(sizes[j] != (j + 1) << (SHIFT * height)) {
+          var node = Arrays.copyOf(children, n + 1);
+          node[n] = sizes;
+          return node;
+        }
+      }
+      return children;
+    }
+
+    /** a new array of the cumulative sizes of the children of `node`, which holds `size` elements */
+    private static int[] sizes(Object[] node, int height, int size) {
+      var sizes = sizes(node);
+      if(sizes != null) { return sizes.clone(); }
+      int n = node.length;
+      sizes = new int[n];
+      for(int j = 0; j < n - 1; j++) { sizes[j] = (j + 1) << (SHIFT * height); }
+      sizes[n - 1] = size;
+      return sizes;
+    }
+
+    /** converts a node of `Left` (where only the first child might not be full) */
+    static Object[] relax_start(Object[] node, int height, int size) {
+      if(height == 0) { return node; }
+      int full = 1 << (SHIFT * height);
+      int child_size = size - (node.length - 1) * full;
+      if(child_size == full) { return node; }
+      var children = node.clone();
+      children[0] = relax_start((Object[]) node[0], height - 1, child_size);
+      var sizes = new int[children.length];
+      for(int j = 0; j < sizes.length; j++) { sizes[j] = child_size + j * full; }
+      return node(children, sizes, height);
+    }
+
+    Object get(int i) {
+      Object[] node = root;
+      for(int h = height; h > 0; h--) {
+        int j = child(node, h, i);
+        i -= offset(node, h, j);
+        node = (Object[]) node[j];
+      }
+      return node[i];
+    }
+
+    /** the index of the first element of `leaf(i)` */
+    int leaf_start(int i) {
+      int start = 0;
+      Object[] node = root;
+      for(int h = height; h > 0; h--) {
+        int j = child(node, h, i);
+        int offset = offset(node, h, j);
+        start += offset;
+        i -= offset;
+        node = (Object[]) node[j];
+      }
+      return start;
+    }
+
+    /** the leaf that contains the element `i` */
+    Object[] leaf(int i) {
+      Object[] node = root;
+      for(int h = height; h > 0; h--) {
+        int j = child(node, h, i);
+        i -= offset(node, h, j);
+        node = (Object[]) node[j];
+      }
+      return node;
+    }
+
+    Middle update(int i, Object element) { return update(i, element, null, 0); }
+
+    /** updates the element `i`, in place in the arrays owned by a transient (the root is tagged `tags[t]`) */
+    Middle update(int i, Object element, Object[] tags, int t) {
+      var updated = update(root, height, i, element, tags, t);
+      return updated == root ? this : new Middle(updated, height, size);
+    }
+
+    private static Object[] update(Object[] node, int height, int i, Object element, Object[] tags, int t) {
+      node = editable(node, height == 0, tags, t);
+      if(height == 0) {
+        node[i] = element;
+      } else {
+        int j = child(node, height, i);
+        node[j] = update((Object[]) node[j], height - 1, i - offset(node, height, j), element, child_tags(tags, t), j);
+      }
+      return node;
+    }
+
+    /** the elements from `from` to `to` (`from < to`) */
+    Middle slice(int from, int to) {
+      if(from == 0 && to == size) { return this; }
+      return shrink(slice(root, height, from, to), height, to - from);
+    }
+
+    private static Object[] slice(Object[] node, int height, int from, int to) {
+      if(height == 0) { return from == 0 && to == node.length ? node : Arrays.copyOfRange(node, from, to); }
+      int first = child(node, height, from), last = child(node, height, to - 1);
+      var children = Arrays.copyOfRange(node, first, last + 1);
+      int offset = offset(node, height, first);
+      int end = first == last ? to : offset(node, height, first + 1);
+      children[0] = slice((Object[]) node[first], height - 1, from - offset, end - offset);
+      if(first < last) {
+        offset = offset(node, height, last);
+        children[children.length - 1] = slice((Object[]) node[last], height - 1, 0, to - offset);
+      }
+      return node(children, height);
+    }
+
+    static Middle concat(Middle a, Middle b) {
+      if(a == null) { return b; }
+      if(b == null) { return a; }
+      var nodes = merge(a.root, a.height, b.root, b.height);
+      int height = Math.max(a.height, b.height);
+      if(nodes.length == 1) {
+        return new Middle((Object[]) nodes[0], height, a.size + b.size);
+      } else {
+        return new Middle(node(nodes, height + 1), height + 1, a.size + b.size);
+      }
+    }
+
+    /** merges the nodes along the border of `a` and `b` into one or two nodes of height `max(ha, hb)` */
+    private static Object[] merge(Object[] a, int ha, Object[] b, int hb) {
+      if(ha == 0 && hb == 0) {
+        if(a.length + b.length > SIZE) { return new Object[]{a, b}; }
+        var leaf = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, leaf, a.length, b.length);
+        return new Object[]{leaf};
+      }
+      int height = Math.max(ha, hb);
+      int na = ha == height ? children(a) - 1 : 0;      // children of `a` that remain unchanged
+      int nb = hb == height ? children(b) - 1 : 0;
+      var merged = merge(
+          ha == height ? (Object[]) a[na] : a, ha == height ? ha - 1 : ha,
+          hb == height ? (Object[]) b[0] : b, hb == height ? hb - 1 : hb
+      );
+      var children = new Object[na + merged.length + nb];
+      System.arraycopy(a, 0, children, 0, na);
+      System.arraycopy(merged, 0, children, na, merged.length);
+      System.arraycopy(b, 1, children, na + merged.length, nb);
+      if(children.length <= SIZE) {
+        return new Object[]{node(children, height)};
+      } else {
+        int half = children.length / 2;
+        return new Object[]{
+            node(Arrays.copyOfRange(children, 0, half), height),
+            node(Arrays.copyOfRange(children, half, children.length), height)
+        };
+      }
+    }
+
+    Object[] first() {
+      Object[] node = root;
+      for(int h = height; h > 0; h--) { node = (Object[]) node[0]; }
+      return node;
+    }
+
+    Object[] last() {
+      Object[] node = root;
+      for(int h = height; h > 0; h--) { node = (Object[]) node[children(node) - 1]; }
+      return node;
+    }
+
+    Middle pop_first() {
+      int n = first().length;
+      return shrink(pop_first(root, height, size, n), height, size - n);
+    }
+
+    Middle pop_last() {
+      int n = last().length;
+      return shrink(pop_last(root, height, size, n), height, size - n);
+    }
+
+    /** removes single-child nodes from the top of the tree */
+    private static Middle shrink(Object[] root, int height, int size) {
+      if(root == null) { return null; }
+      while(height > 0 && children(root) == 1) {
+        root = (Object[]) root[0];
+        height -= 1;
+      }
+      return new Middle(root, height, size);
+    }
+
+    /**
+     * `node` (of `size` elements) without its first leaf (of `removed` elements), or `null` if it becomes empty; the
+     * sizes of the children are updated, not recomputed, so each level takes `O(SIZE)` time
+     */
+    private static Object[] pop_first(Object[] node, int height, int size, int removed) {
+      if(height == 0) { return null; }
+      int n = children(node);
+      var sizes = sizes(node, height, size);
+      var child = pop_first((Object[]) node[0], height - 1, sizes[0], removed);
+      if(child == null) {
+        if(n == 1) { return null; }
+        var rest = new int[n - 1];
+        for(int j = 0; j < n - 1; j++) { rest[j] = sizes[j + 1] - removed; }
+        return node(Arrays.copyOfRange(node, 1, n), rest, height);
+      }
+      var children = Arrays.copyOf(node, n);
+      children[0] = child;
+      for(int j = 0; j < n; j++) { sizes[j] -= removed; }
+      return node(children, sizes, height);
+    }
+
+    /** `node` (of `size` elements) without its last leaf (of `removed` elements), or `null` if it becomes empty */
+    private static Object[] pop_last(Object[] node, int height, int size, int removed) {
+      if(height == 0) { return null; }
+      int n = children(node);
+      var sizes = sizes(node, height, size);
+      var child = pop_last((Object[]) node[n - 1], height - 1, sizes[n - 1] - (n == 1 ? 0 : sizes[n - 2]), removed);
+      if(child == null) {
+        return n == 1 ? null : node(Arrays.copyOf(node, n - 1), Arrays.copyOf(sizes, n - 1), height);
+      }
+      var children = Arrays.copyOf(node, n);
+      children[n - 1] = child;
+      sizes[n - 1] -= removed;
+      return node(children, sizes, height);
+    }
+
+    void debug() {
+      System.out.println("Middle: size=" + size + " height=" + height);
+      debug(1, root, height);
+    }
+
+    private static void debug(int indent, Object[] node, int height) {
+      if(height == 0) {
+        System.out.println("  ".repeat(indent) + Arrays.toString(node));
+      } else {
+        System.out.println("  ".repeat(indent) + "[" + (sizes(node) == null ? "" : " " + Arrays.toString(sizes(node))));
+        for(int j = 0; j < children(node); j++) {
+          debug(indent + 1, (Object[]) node[j], height - 1);
+        }
+        System.out.println("  ".repeat(indent) + "]");
+      }
+    }
+  }
+
+  /**
+   * One of the two tries of a vector. The elements that don't fill a whole leaf are kept in the tail `extra`, which
+   * can be a buffer with free slots (at the end for `Right` and at the start for `Left`) that are filled with `FREE`.
+   * Vectors pushed onto the same version share the buffer; the first one to claim a free slot (with a CAS) writes its
+   * element in place, all others copy the tail.
+   */
   private abstract static class Half<E, This extends Half<E, This, That>, That extends Half<E, That, This>> {
+    private static final Object FREE = new Object();
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
     final byte shift;
     final Object[] extra;
+    final int extra_size;
     final Object[] data;
     final int data_size;
 
-    public Half(int data_size, Object[] data, Object[] extra) {
+    public Half(int data_size, Object[] data, Object[] extra) { this(data_size, data, extra, extra.length); }
+    public Half(int data_size, Object[] data, Object[] extra, int extra_size) {
       assert data == null || data.length > 1;
-      assert extra != null;
+      assert extra != null && extra_size <= extra.length && extra.length <= SIZE;
       this.extra = extra;
+      this.extra_size = extra_size;
       this.data = data;
       this.data_size = data_size;
       this.shift = shift(data_size);
     }
 
-    abstract This make(int data_size, Object[] data, Object[] extra);
-    abstract Vector<E> vector(That end, This start);
+    abstract This make(int data_size, Object[] data, Object[] extra, int extra_size);
+    This make(int data_size, Object[] data, Object[] extra) { return make(data_size, data, extra, extra.length); }
+    This make(int data_size, Object[] data) { return make(data_size, data, extra, extra_size); }   // keeps the tail
+    abstract Vector<E> vector(That end, Middle middle, This start);
     abstract int start_index(Object[] array);
     abstract int end_index(Object[] array);
     abstract Object[] end();
+    abstract Object[] end(Middle middle);     // the leaf of `middle` next to this half
+    abstract Middle pop(Middle middle);       // `middle` without that leaf
+    abstract Middle middle();                 // `data` as a middle tree
+    abstract Object get(int i);
+    abstract int data_start();                // the number of elements before `data`
+    abstract int index(Object[] node, int c); // the index of the `c`-th child (of `SIZE` possible ones) of `node`
+    abstract Object[] root(Object[] level);   // the root of a trie with the given nodes at one level
+    abstract int leaf_offset();               // the number of (virtual) leaves before the first leaf of `data`
+    abstract int extra_start(int capacity, int size);   // the first slot of a tail of `size` in a buffer
+    abstract int free_slot(int capacity, int size);     // the slot of the next element pushed onto such a tail
+
+    int extra_start() { return extra_start(extra.length, extra_size); }
+
+    /** the elements of the tail, in an array of their own */
+    Object[] tail() {
+      if(extra.length == extra_size) { return extra; }
+      int start = extra_start();
+      return copied(Arrays.copyOfRange(extra, start, start + extra_size));
+    }
+
+    /** the elements of the tail but the one at the end, copied straight from the buffer */
+    private Object[] pop_tail() {
+      int start = extra_start(extra.length, extra_size - 1);
+      return copied(Arrays.copyOfRange(extra, start, start + extra_size - 1));
+    }
+
+    protected Object[] elements(int from, int to) {
+      if(from == to) { return EMPTY_ARRAY; }
+      var result = new Object[to - from];
+      for(int i = from; i < to; i++) { result[i - from] = get(i); }
+      return result;
+    }
+
+    /** `node` (of the given height) without its first `n` (virtual) leaves */
+    protected Object[] suffix(Object[] node, int height, int n) {
+      if(n == 0) { return node; }
+      int shift = SHIFT * (height - 1);
+      int j = index(node, n >> shift);
+      var result = Arrays.copyOfRange(node, j, node.length);
+      result[0] = suffix((Object[]) node[j], height - 1, n & ((1 << shift) - 1));
+      return result;
+    }
+
+    /** the first `n` (virtual) leaves of `node` (of the given height) */
+    protected Object[] prefix(Object[] node, int height, int n) {
+      if(height == 0) { return node; }
+      int shift = SHIFT * (height - 1);
+      int j = index(node, (n - 1) >> shift);
+      var child = prefix((Object[]) node[j], height - 1, n - (((n - 1) >> shift) << shift));
+      if(j == node.length - 1 && child == node[j]) { return node; }
+      var result = Arrays.copyOf(node, j + 1);
+      result[j] = child;
+      return result;
+    }
 
     public void debug(int indent, int shift, Object[] array) {
       if(shift == SHIFT) {
@@ -255,8 +2371,8 @@ public final class Vector<E> implements Iterable<E> {
     }
 
     protected Pair split(Object[] array) {
-      var start = new Object[SIZE / 2 + 1];
-      var end = new Object[SIZE / 2 + 1];
+      var start = copied(new Object[SIZE / 2 + 1]);
+      var end = copied(new Object[SIZE / 2 + 1]);
       System.arraycopy(array, 0, start, 1, SIZE / 2);
       System.arraycopy(array, SIZE / 2, end, 0, SIZE / 2);
       return new Pair(start, end);
@@ -272,7 +2388,7 @@ public final class Vector<E> implements Iterable<E> {
     }
 
     protected Object[] array2(Object start, Object end) {
-      Object[] array = new Object[2];
+      Object[] array = copied(new Object[2]);
       array[start_index(array)] = start;
       array[end_index(array)] = end;
       return array;
@@ -280,40 +2396,75 @@ public final class Vector<E> implements Iterable<E> {
 
     protected abstract Object[] push(Object[] array, Object element);
     protected This push(E e) {
-      if(extra.length < SIZE) {
-        return make(data_size, data, push(extra, e));
+      if(extra_size < extra.length && SLOTS.compareAndSet(extra, free_slot(extra.length, extra_size), FREE, e)) {
+        return make(data_size, data, extra, extra_size + 1);
+      } else if(extra_size < SIZE) {
+        return make(data_size, data, grow(extra, extra_start(), extra_size, e), extra_size + 1);
       } else {
-        Object[] new_data;
-        if(data == null) {
-          new_data = extra;
-        } else if(data_size >= 1 << shift) {    // need new level
-          new_data = array2(data, single(shift, extra));
-        } else {
-          new_data = push_node(data, shift - SHIFT, extra);
+        return make(data_size + SIZE, push_data(extra, null, 0), grow(EMPTY_ARRAY, 0, 0, e), 1);
+      }
+    }
+
+    /** a new buffer with the `size` elements of `array` from `start` and `e` pushed onto them */
+    private Object[] grow(Object[] array, int start, int size, Object e) {
+      var buffer = copied(new Object[Math.min(SIZE, Math.max(2, 2 * size))]);    // doubles, so small vectors stay small
+      Arrays.fill(buffer, FREE);
+      System.arraycopy(array, start, buffer, extra_start(buffer.length, size), size);
+      buffer[free_slot(buffer.length, size)] = e;
+      return buffer;
+    }
+
+    /**
+     * returns `data` with the full `leaf` added to the end; in a transient (with `tags`, where `data` is tagged
+     * `tags[t]`), `leaf` is owned by it and owned nodes are modified in place
+     */
+    protected Object[] push_data(Object[] leaf, Object[] tags, int t) {
+      if(data == null) {
+        if(tags != null) { tags[t] = OWNED; }
+        return leaf;
+      } else if(data_size >= 1 << shift) {    // need new level
+        if(Instrumentation.ENABLED) { Instrumentation.depth(this instanceof Left, shift / SHIFT, shift / SHIFT + 1); }
+        if(tags != null) {
+          var tag = new Object[2];
+          tag[start_index(tag)] = tags[t];
+          tag[end_index(tag)] = single(shift, OWNED);
+          tags[t] = tag;
         }
-        return make(data_size + SIZE, new_data, new Object[]{e});
+        return array2(data, single(shift, leaf));
+      } else {
+        return push_node(data, shift - SHIFT, leaf, tags, t);
       }
     }
 
-    private Object[] push_node(Object[] parent, int shift, Object[] array) {
-      if(shift == 0) { return array; }
+    private Object[] push_node(Object[] parent, int shift, Object[] array, Object[] tags, int t) {
+      if(shift == 0) {
+        if(tags != null) { tags[t] = OWNED; }
+        return array;
+      }
       int i = (data_size >> shift) & MASK;
       if(i < parent.length) {
-        Object[] updated = parent.clone();
+        Object[] updated = editable(parent, false, tags, t);
         int j = end_index(updated);
-        updated[j] = push_node((Object[]) parent[j], shift - SHIFT, array);
+        updated[j] = push_node((Object[]) parent[j], shift - SHIFT, array, child_tags(tags, t), j);
         return updated;
       } else {
+        if(tags != null) {      // the pushed node is new, so it's owned, and so are the children that were owned
+          var tag = new Object[parent.length + 1];
+          int j = end_index(tag);
+          if(tags[t] != null) { System.arraycopy(tags[t], 0, tag, j == 0 ? 1 : 0, parent.length); }
+          tag[j] = single(shift, OWNED);
+          tags[t] = tag;
+        }
         return push(parent, single(shift, array));
       }
     }
 
     protected abstract Object[] pop(Object[] array);
     protected This pop() {
-      if(extra.length > 1) {
-        return make(data_size, data, pop(extra));
+      if(extra_size > 1) {
+        return make(data_size, data, pop_tail());
       } else if(data == null) {
-        if(extra.length == 0) { throw new IllegalStateException("empty"); }
+        if(extra_size == 0) { throw new IllegalStateException("empty"); }
         return make(0, null, EMPTY_ARRAY);
       } else {
         Object[] new_extra;
@@ -324,12 +2475,15 @@ public final class Vector<E> implements Iterable<E> {
         } else {
           new_extra = end();
           if (data_size == (1 << (shift - SHIFT)) + SIZE) {  // reduce depth
+            if(Instrumentation.ENABLED) {
+              Instrumentation.depth(this instanceof Left, shift / SHIFT, shift / SHIFT - 1);
+            }
             new_data = (Object[]) data[start_index(data)];
           } else {
             new_data = pop_node(data, shift - SHIFT);
           }
         }
-        if(extra.length == 0) {
+        if(extra_size == 0) {
           new_extra = pop(new_extra);
         }
         return make(data_size - SIZE, new_data, new_extra);
@@ -341,7 +2495,7 @@ public final class Vector<E> implements Iterable<E> {
       if(((data_size - 1) & mask) == 0) {     // all next indices are 0 -> remove whole column
         return pop(parent);
       } else {
-        Object[] updated = parent.clone();
+        Object[] updated = copied(parent.clone());
         int i = end_index(updated);
         updated[i] = pop_node((Object[]) updated[i], shift - SHIFT);
         return updated;
@@ -353,12 +2507,66 @@ public final class Vector<E> implements Iterable<E> {
     private Right(int data_size, Object[] data, Object[] extra) {
       super(data_size, data, extra);
     }
+    private Right(int data_size, Object[] data, Object[] extra, int extra_size) {
+      super(data_size, data, extra, extra_size);
+    }
     private static final Right<Object> empty = new Right<>(0, null, EMPTY_ARRAY);
-    protected Right<E> make(int data_size, Object[] data, Object[] extra) { return new Right<>(data_size, data, extra); }
-    protected Vector<E> vector(Left<E> left, Right<E> right) { return new Vector<>(left, right); }
+
+    /** Builds the trie bottom-up, with all leaves full; the remaining elements become `extra`. */
+    private static <E> Right<E> of(LeafSource elements, int from, int to) {
+      int data_size = (to - from) & ~MASK;
+      Object[] level = new Object[data_size / SIZE];
+      for(int i = 0; i < level.length; i++) {
+        level[i] = elements.leaf(from + i * SIZE, SIZE);
+      }
+      var data = level.length == 0 ? null : tree(level);
+      return new Right<>(data_size, data, elements.leaf(from + data_size, to - from - data_size));
+    }
+
+    private static <E> Right<E> fill(Object[] leaf, int n) {
+      int data_size = n & ~MASK;
+      var data = data_size == 0 ? null : repeat(leaf, data_size / SIZE, false);
+      return new Right<>(data_size, data, copy(leaf, 0, n - data_size));
+    }
+
+    private static Object[] tree(Object[] level) {
+      while(level.length > 1) {
+        var parents = new Object[(level.length + MASK) / SIZE];
+        for(int i = 0; i < parents.length; i++) {
+          parents[i] = copy(level, i * SIZE, Math.min(SIZE, level.length - i * SIZE));
+        }
+        level = parents;
+      }
+      return (Object[]) level[0];
+    }
+    protected Right<E> make(int data_size, Object[] data, Object[] extra, int extra_size) {
+      return new Right<>(data_size, data, extra, extra_size);
+    }
+    protected Vector<E> vector(Left<E> left, Middle middle, Right<E> right) {
+      return new Vector<>(left, middle, right);
+    }
     protected int start_index(Object[] array) { return 0; }
     protected int end_index(Object[] array) { return array.length - 1; }
     protected Object[] end() { return get_array(data_size - 1); }
+    protected Object[] end(Middle middle) { return middle.last(); }
+    protected Middle pop(Middle middle) { return middle.pop_last(); }
+    protected Middle middle() { return data == null ? null : new Middle(data, shift / SHIFT - 1, data_size); }
+    protected int data_start() { return 0; }
+    protected int leaf_offset() { return 0; }
+    protected int extra_start(int capacity, int size) { return 0; }
+    protected int free_slot(int capacity, int size) { return size; }
+    protected int index(Object[] node, int c) { return c; }
+    protected Object[] root(Object[] level) { return tree(level); }
+
+    @SuppressWarnings("unchecked")
+    private static <E> Right<E> empty() { return (Right<E>) empty; }
+
+    /** the first `n` elements */
+    private Right<E> prefix(int n) {
+      int size = Math.min(n, data_size) & ~MASK;
+      var new_data = size == 0 ? null : unwrap(prefix(data, shift / SHIFT - 1, size / SIZE));
+      return new Right<>(size, new_data, elements(size, n));
+    }
 
     public void debug() {
       System.out.println("Right: data_size=" + data_size + " shift=" + shift);
@@ -367,22 +2575,22 @@ public final class Vector<E> implements Iterable<E> {
       } else {
         debug(1, shift, data);
       }
-      System.out.println("  " + Arrays.toString(extra));
+      System.out.println("  " + Arrays.toString(tail()));
     }
 
     protected Object[] push(Object[] array, Object element) {
-      Object[] result = new Object[array.length + 1];
+      Object[] result = copied(new Object[array.length + 1]);
       System.arraycopy(array, 0, result, 0, array.length);
       result[array.length] = element;
       return result;
     }
     protected Object[] pop(Object[] array) {
-      Object[] result = new Object[array.length - 1];
+      Object[] result = copied(new Object[array.length - 1]);
       System.arraycopy(array, 0, result, 0, result.length);
       return result;
     }
 
-    private Object get(int i) {
+    protected Object get(int i) {
       if(i >= data_size) { return extra[i - data_size]; }
       Object[] a = get_array(i);
       return a[i & MASK];
@@ -400,20 +2608,20 @@ public final class Vector<E> implements Iterable<E> {
 
     private Right<E> update(int i, Object element) {
       if(i >= data_size) {
-        Object[] new_extra = extra.clone();
+        Object[] new_extra = copied(Arrays.copyOf(extra, extra_size));
         new_extra[i - data_size] = element;
         return new Right<>(data_size, this.data, new_extra);
       } else {
-        return new Right<>(data_size, update_array(this.data, this.shift, i, element), this.extra);
+        return make(data_size, update_array(this.data, this.shift, i, element, null, 0));
       }
     }
 
-    private Object[] update_array(Object[] a, int shift, int i, Object element) {
-      a = a.clone();
+    private Object[] update_array(Object[] a, int shift, int i, Object element, Object[] tags, int t) {
+      a = editable(a, shift == SHIFT, tags, t);
       if(shift > SHIFT) {
         shift -= SHIFT;
         int j = (i >> shift) & MASK;
-        a[j] = update_array((Object[]) a[j], shift, i, element);
+        a[j] = update_array((Object[]) a[j], shift, i, element, child_tags(tags, t), j);
       } else {
         a[i & MASK] = element;
       }
@@ -424,17 +2632,81 @@ public final class Vector<E> implements Iterable<E> {
     private Left(int data_size, Object[] data, Object[] extra) {
       super(data_size, data, extra);
     }
+    private Left(int data_size, Object[] data, Object[] extra, int extra_size) {
+      super(data_size, data, extra, extra_size);
+    }
     private static final Left<Object> empty = new Left<>(0, null, EMPTY_ARRAY);
-    protected Left<E> make(int data_size, Object[] data, Object[] extra) { return new Left<>(data_size, data, extra); }
-    protected Vector<E> vector(Right<E> right, Left<E> left) { return new Vector<>(left, right); }
+
+    /** Builds the trie bottom-up, with all leaves full; the remaining (first) elements become `extra`. */
+    private static <E> Left<E> of(LeafSource elements, int from, int to) {
+      int data_size = (to - from) & ~MASK;
+      int extra_size = to - from - data_size;
+      Object[] level = new Object[data_size / SIZE];
+      for(int i = 0; i < level.length; i++) {
+        level[i] = elements.leaf(from + extra_size + i * SIZE, SIZE);
+      }
+      var data = level.length == 0 ? null : tree(level);
+      return new Left<>(data_size, data, elements.leaf(from, extra_size));
+    }
+
+    private static <E> Left<E> fill(Object[] leaf, int n) {
+      int data_size = n & ~MASK;
+      var data = data_size == 0 ? null : repeat(leaf, data_size / SIZE, true);
+      return new Left<>(data_size, data, copy(leaf, 0, n - data_size));
+    }
+
+    private static Object[] tree(Object[] level) {
+      while(level.length > 1) {     // the first parent is the one that isn't full
+        var parents = new Object[(level.length + MASK) / SIZE];
+        int first = level.length - (parents.length - 1) * SIZE;
+        parents[0] = copy(level, 0, first);
+        for(int i = 1; i < parents.length; i++) {
+          parents[i] = copy(level, first + (i - 1) * SIZE, SIZE);
+        }
+        level = parents;
+      }
+      return (Object[]) level[0];
+    }
+    protected Left<E> make(int data_size, Object[] data, Object[] extra, int extra_size) {
+      return new Left<>(data_size, data, extra, extra_size);
+    }
+    protected Vector<E> vector(Right<E> right, Middle middle, Left<E> left) {
+      return new Vector<>(left, middle, right);
+    }
     protected int start_index(Object[] array) { return array.length - 1; }
     protected int end_index(Object[] array) { return 0; }
     protected Object[] end() { return get_array(0); }
+    protected Object[] end(Middle middle) { return middle.first(); }
+    protected Middle pop(Middle middle) { return middle.pop_first(); }
+    protected Middle middle() {
+      if(data == null) { return null; }
+      int height = shift / SHIFT - 1;
+      return new Middle(Middle.relax_start(data, height, data_size), height, data_size);
+    }
+    protected int data_start() { return extra_size; }
+    protected int leaf_offset() { return ((1 << shift) - data_size) >> SHIFT; }
+    protected int extra_start(int capacity, int size) { return capacity - size; }
+    protected int free_slot(int capacity, int size) { return capacity - size - 1; }
+    protected int index(Object[] node, int c) { return c - SIZE + node.length; }
+    protected Object[] root(Object[] level) { return tree(level); }
+
+    @SuppressWarnings("unchecked")
+    private static <E> Left<E> empty() { return (Left<E>) empty; }
+
+    /** the elements from `from` to the end */
+    private Left<E> suffix(int from) {
+      int skipped = Math.min(Math.max(from - extra_size + MASK, 0) & ~MASK, data_size);
+      Object[] new_data = null;
+      if(skipped < data_size) {
+        new_data = unwrap(suffix(data, shift / SHIFT - 1, leaf_offset() + skipped / SIZE));
+      }
+      return new Left<>(data_size - skipped, new_data, elements(from, extra_size + skipped));
+    }
 
 
     public void debug() {
       System.out.println("Left: data_size=" + data_size + " shift=" + shift);
-      System.out.println("  " + Arrays.toString(extra));
+      System.out.println("  " + Arrays.toString(tail()));
       if(data == null) {
         System.out.println("  []");
       } else {
@@ -443,13 +2715,13 @@ public final class Vector<E> implements Iterable<E> {
     }
 
     protected Object[] push(Object[] array, Object element) {
-      Object[] result = new Object[array.length + 1];
+      Object[] result = copied(new Object[array.length + 1]);
       System.arraycopy(array, 0, result, 1, array.length);
       result[0] = element;
       return result;
     }
     protected Object[] pop(Object[] array) {
-      Object[] result = new Object[array.length - 1];
+      Object[] result = copied(new Object[array.length - 1]);
       System.arraycopy(array, 1, result, 0, result.length);
       return result;
     }
@@ -459,9 +2731,9 @@ public final class Vector<E> implements Iterable<E> {
       return new Pair(pair.right, pair.left);
     }
 
-    private Object get(int i) {
-      if(i < extra.length) { return extra[i]; }
-      i -= extra.length;
+    protected Object get(int i) {
+      if(i < extra_size) { return extra[extra.length - extra_size + i]; }
+      i -= extra_size;
       Object[] a = get_array(i);
       return a[i & MASK];
     }
@@ -478,22 +2750,23 @@ public final class Vector<E> implements Iterable<E> {
     }
 
     private Left<E> update(int i, Object element) {
-      if(i < extra.length) {
-        Object[] new_extra = extra.clone();
+      if(i < extra_size) {
+        Object[] new_extra = copied(Arrays.copyOfRange(extra, extra_start(), extra.length));
         new_extra[i] = element;
         return new Left<>(data_size, this.data, new_extra);
       } else {
+        i -= extra_size;
         i += ((1 << this.shift) - data_size);    // adjust because of right bias
-        return new Left<>(data_size, update_array(this.data, this.shift, i, element), this.extra);
+        return make(data_size, update_array(this.data, this.shift, i, element, null, 0));
       }
     }
 
-    private Object[] update_array(Object[] a, int shift, int i, Object element) {
-      a = a.clone();
+    private Object[] update_array(Object[] a, int shift, int i, Object element, Object[] tags, int t) {
+      a = editable(a, shift == SHIFT, tags, t);
       if(shift > SHIFT) {
         shift -= SHIFT;
         int j = ((i >> shift) & MASK) - SIZE + a.length;
-        a[j] = update_array((Object[]) a[j], shift, i, element);
+        a[j] = update_array((Object[]) a[j], shift, i, element, child_tags(tags, t), j);
       } else {
         a[i & MASK] = element;
       }
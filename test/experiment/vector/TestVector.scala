@@ -100,6 +100,442 @@ class TestVector extends munit.FunSuite {
   check("prepend(9) + dropRight", _.prepend(Range(0, 9)).dropRight(1).dropRight(3).dropRight(1).dropRight(1).dropRight(2).dropRight(1))
   check("prepend(9) + dropLeft", _.prepend(Range(0, 9)).dropLeft(1).dropLeft(3).dropLeft(1).dropLeft(1).dropLeft(2).dropLeft(1))
 
+  def from(n: Int): VectorWrapper = {
+    val xs = Range(0, n).map(i => i: Any)
+    new VectorWrapper(Vector.from(xs.asJava), new java.util.ArrayDeque[Any](xs.asJava))
+  }
+
+  for(n <- List(0, 1, 31, 32, 33, 64, 65, 100, 1024, 1056, 1057, 5000, 33000)) {
+    test(s"from($n) + dropLeft + dropRight") { from(n).dropLeft(n / 2).dropRight(n - n / 2) }
+    test(s"from($n) + dropRight") { from(n).dropRight(n) }
+    test(s"from($n) + append + prepend + dropLeft") { from(n).append(Range(0, 100)).prepend(Range(0, 100)).dropLeft(n + 200) }
+  }
+
+  test("appendAll + prependAll") {
+    val random = new Random(2)
+    var v = Vector.of[Any]()
+    val b = scala.collection.mutable.ArrayBuffer[Any]()
+    for(i <- Range(0, 200)) {
+      val xs = Range(0, random.nextInt(if(i % 10 == 0) 3000 else 100)).map(j => (i, j): Any)
+      if(random.nextBoolean()) {
+        v = v.appendAll(xs.asJava)
+        b.appendAll(xs)
+      } else {
+        v = v.prependAll(xs.asJava)
+        b.prependAll(xs)
+      }
+      assertEquals(v.toList.asScala, b)
+    }
+    val w = new VectorWrapper(v, new java.util.ArrayDeque[Any](b.asJava))
+    w.dropLeft(b.length / 3).dropRight(b.length - b.length / 3)
+  }
+
+  def random(random: Random, n: Int): (Vector[Any], scala.collection.mutable.ArrayBuffer[Any]) = {
+    var v = Vector.of[Any]()
+    val b = scala.collection.mutable.ArrayBuffer[Any]()
+    for(i <- Range(0, n)) {
+      if(random.nextInt(4) == 0) { v = v.push_left(i); b.prepend(i) } else { v = v.push_right(i); b.append(i) }
+    }
+    (v, b)
+  }
+
+  def wrap(v: Vector[Any], b: Iterable[Any]): VectorWrapper = {
+    assertEquals(v.size(), b.size)
+    assertEquals(v.toList.asScala, b.toBuffer)
+    for((e, i) <- b.zipWithIndex) { assertEquals(v.get(i), e) }
+    new VectorWrapper(v, new java.util.ArrayDeque[Any](b.asJavaCollection))
+  }
+
+  test("concat") {
+    val r = new Random(3)
+    for(_ <- Range(0, 100)) {
+      val (a, x) = random(r, r.nextInt(3000))
+      val (b, y) = random(r, r.nextInt(3000))
+      val w = wrap(a.concat(b), x ++ y)
+      w.prepend(Range(0, 50)).append(Range(0, 50)).dropLeft(r.nextInt(w.v.size()))
+      w.dropRight(r.nextInt(w.v.size())).append(Range(0, 100)).dropLeft(w.v.size())
+    }
+  }
+
+  test("concat many") {
+    val r = new Random(4)
+    var v = Vector.of[Any]()
+    val b = scala.collection.mutable.ArrayBuffer[Any]()
+    for(i <- Range(0, 300)) {
+      val (a, x) = random(r, r.nextInt(if(i % 10 == 0) 5000 else 70))
+      if(r.nextBoolean()) { v = v.concat(a); b.appendAll(x) } else { v = a.concat(v); b.prependAll(x) }
+      val j = r.nextInt(b.length + 1)
+      if(j < b.length) { v = v.update(j, -i); b(j) = -i }
+    }
+    wrap(v, b).dropLeft(b.length / 2).append(Range(0, 1000)).dropRight(b.length - b.length / 2 + 1000)
+    wrap(v, b).dropRight(b.length / 3).prepend(Range(0, 1000)).dropLeft(b.length - b.length / 3 + 1000)
+  }
+
+  test("slice") {
+    val r = new Random(5)
+    for(i <- Range(0, 300)) {
+      val (v, b) = if(i % 3 == 0) {
+        val (a, x) = random(r, r.nextInt(5000))
+        val (c, y) = random(r, r.nextInt(5000))
+        (a.concat(c), x ++ y)
+      } else {
+        random(r, r.nextInt(if(i % 10 == 0) 40000 else 3000))
+      }
+      val from = r.nextInt(b.length + 1)
+      val to = from + r.nextInt(b.length - from + 1)
+      val w = wrap(v.slice(from, to), b.slice(from, to))
+      w.append(Range(0, 40)).prepend(Range(0, 40)).dropLeft(r.nextInt(w.v.size()))
+      w.dropRight(r.nextInt(w.v.size() + 1)).append(Range(0, 40)).dropLeft(w.v.size())
+    }
+  }
+
+  test("take + drop") {
+    val (v, b) = random(new Random(6), 20000)
+    for(n <- List(0, 1, 31, 32, 33, 1023, 1024, 1025, 1056, 5000, 19999, 20000)) {
+      wrap(v.take(n), b.take(n))
+      wrap(v.drop(n), b.drop(n))
+      wrap(v.takeRight(n), b.takeRight(n))
+      wrap(v.dropRight(n), b.dropRight(n))
+    }
+    var w = v
+    var x = b
+    while(x.length > 1007) {
+      w = w.drop(1000).dropRight(7)
+      x = x.drop(1000).dropRight(7)
+      wrap(w, x)
+    }
+    intercept[IndexOutOfBoundsException] { v.slice(2, 1) }
+    intercept[IndexOutOfBoundsException] { v.take(20001) }
+  }
+
+  def collect(s: java.util.Spliterator[Any], depth: Int): scala.collection.mutable.Buffer[Any] = {
+    val prefix = if(depth > 0) s.trySplit() else null
+    if(prefix != null) { return collect(prefix, depth - 1) ++ collect(s, depth - 1) }
+    val size = s.estimateSize()
+    val result = scala.collection.mutable.ArrayBuffer[Any]()
+    if(s.tryAdvance(e => result.append(e))) { s.forEachRemaining(e => result.append(e)) }
+    assertEquals(result.length.toLong, size)
+    result
+  }
+
+  test("insert + removeAt + insertAll") {
+    val r = new Random(14)
+    for(start <- List(0, 5, 40000)) {
+      var v = Vector.from(Range(0, start).map(i => i: Any).asJava)
+      val b = Range(0, start).map(i => i: Any).to(scala.collection.mutable.ArrayBuffer)
+      for(n <- Range(0, 3000)) {
+        r.nextInt(10) match {
+          case 0 if b.nonEmpty => val i = r.nextInt(b.length); v = v.removeAt(i); b.remove(i)
+          case 1 if b.nonEmpty => val i = r.nextInt(b.length); v = v.removeAt(i); b.remove(i)
+          case 2 =>
+            val i = r.nextInt(b.length + 1)
+            val (w, x) = random(r, r.nextInt(100))
+            v = v.insertAll(i, w)
+            b.insertAll(i, x)
+          case _ => val i = r.nextInt(b.length + 1); v = v.insert(i, -n); b.insert(i, -n)
+        }
+        if(n % 500 == 0) { wrap(v, b) }
+      }
+      if(Vector.branchingFactor() == 32) { assert(v.stats().middle_height <= 3, v.stats()) }
+      wrap(v, b).dropLeft(b.length / 2).append(Range(0, 100)).dropRight(b.length - b.length / 2 + 100)
+    }
+    intercept[IndexOutOfBoundsException] { Vector.of[Any](1).insert(2, 0) }
+    intercept[IndexOutOfBoundsException] { Vector.of[Any](1).removeAt(1) }
+  }
+
+  test("spliterator + stream") {
+    val r = new Random(8)
+    val (a, x) = random(r, 30000)
+    val (c, y) = random(r, 20000)
+    for((v, b) <- List((a, x), (a.concat(c), x ++ y), (a.slice(1000, 1100), x.slice(1000, 1100)), (Vector.of[Any](), Nil))) {
+      assertEquals(v.stream().toList.asScala, b.toBuffer)
+      assertEquals(v.parallelStream().map(e => e.asInstanceOf[Int] * 2: Any).toList.asScala, b.map(_.asInstanceOf[Int] * 2).toBuffer[Any])
+      val s = v.spliterator()
+      assert(s.hasCharacteristics(java.util.Spliterator.SIZED | java.util.Spliterator.SUBSIZED))
+      assertEquals(collect(s, 8), b.toBuffer)
+    }
+  }
+
+  test("forEachChunk + forEach + cursor") {
+    val r = new Random(9)
+    val (a, x) = random(r, 40000)
+    val (c, y) = random(r, 3000)
+    for((v, b) <- List((a, x), (a.concat(c).concat(a), x ++ y ++ x), (Vector.of[Any](1, 2, 3), List(1, 2, 3)))) {
+      val chunks = scala.collection.mutable.ArrayBuffer[Any]()
+      v.forEachChunk((leaf, from, to) => chunks.appendAll(leaf.slice(from, to)))
+      assertEquals(chunks.toBuffer, b.toBuffer)
+      val from = r.nextInt(b.size)
+      val to = from + r.nextInt(b.size - from)
+      chunks.clear()
+      v.forEachChunk(from, to, (leaf, i, j) => chunks.appendAll(leaf.slice(i, j)))
+      assertEquals(chunks.toBuffer, b.slice(from, to).toBuffer)
+      val each = scala.collection.mutable.ArrayBuffer[Any]()
+      v.forEach(e => each.append(e))
+      assertEquals(each.toBuffer, b.toBuffer)
+
+      val cursor = v.cursor(from)
+      assertEquals(cursor.nextIndex(), from)
+      for(e <- b.drop(from)) { assertEquals(cursor.next(), e) }
+      assert(!cursor.hasNext)
+      for(e <- b.toSeq.reverse) { assertEquals(cursor.previous(), e) }
+      assert(!cursor.hasPrevious)
+      for(_ <- Range(0, 1000)) {
+        val i = r.nextInt(b.size)
+        cursor.seek(i)
+        if(r.nextBoolean()) { assertEquals(cursor.next(), b.toSeq(i)) } else if(i > 0) { assertEquals(cursor.previous(), b.toSeq(i - 1)) }
+        if(cursor.hasNext) { assertEquals(cursor.next(), b.toSeq(cursor.previousIndex())) }
+      }
+    }
+    intercept[IndexOutOfBoundsException] { Vector.of[Any](1).cursor(2) }
+  }
+
+  def array(xs: Any*): Array[Any with AnyRef] = xs.map(_.asInstanceOf[AnyRef]).toArray
+
+  test("updateAll + updateRange") {
+    val r = new Random(10)
+    val (a, x) = random(r, 20000)
+    val (c, y) = random(r, 5000)
+    for((v, b) <- List((a, x), (c.concat(a), y ++ x))) {
+      val indices = Array.fill(3000)(r.nextInt(b.length)) ++ Array(0, b.length - 1, 0)
+      val values = array(indices.indices.map(-_): _*)
+      val expected = b.clone()
+      for((j, e) <- indices.zip(values)) { expected(j) = e }
+      wrap(v.updateAll(indices, values), expected).append(Range(0, 40)).dropLeft(1000)
+      val from = r.nextInt(b.length - 1000)
+      val range = array(Range(0, 1000).map(i => (i, "range")): _*)
+      wrap(v.updateRange(from, range), b.patch(from, range, range.length)).prepend(Range(0, 40)).dropRight(1000)
+      wrap(v, b)
+    }
+    intercept[IllegalArgumentException] { a.updateAll(Array(1, 2), array(1)) }
+    intercept[IndexOutOfBoundsException] { a.updateRange(19999, array(1, 2)) }
+  }
+
+  test("push onto shared tails") {
+    val r = new Random(11)
+    val (a, x) = random(r, 1000)
+    for((v, b) <- List((a, x), (Vector.of[Any](), Nil), (Vector.of[Any](1, 2, 3), List(1, 2, 3)))) {
+      val versions = scala.collection.mutable.ArrayBuffer((v, b.toVector))
+      for(i <- Range(0, 400)) {
+        val (w, c) = versions(r.nextInt(versions.length))
+        val e = if(i % 7 == 0) null else i
+        versions += (if(r.nextBoolean()) (w.push_right(e), c :+ e) else (w.push_left(e), e +: c))
+        if(i % 5 == 0 && c.nonEmpty) { versions += ((w.update(c.length / 2, "u"), c.updated(c.length / 2, "u"))) }
+      }
+      for((w, c) <- versions) {    // not `wrap`, as `ArrayDeque` doesn't allow nulls
+        assertEquals(w.toList.asScala, c.toBuffer)
+        for((e, i) <- c.zipWithIndex) { assertEquals(w.get(i), e) }
+      }
+    }
+    val pushed = java.util.concurrent.ConcurrentHashMap.newKeySet[Vector[Any]]()
+    val threads = Range(0, 4).map(t => new Thread(() => {
+      for(i <- Range(0, 100)) { pushed.add(a.push_right((t, i)).push_left((t, i))) }
+    }))
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    for(w <- pushed.asScala) { wrap(w, w.get(0) +: x :+ w.get(0)) }
+    wrap(a, x)
+  }
+
+  test("map + filter + flatMap + reduce + foldLeft") {
+    val r = new Random(13)
+    val (a, x) = random(r, 200000)
+    val (b, y) = random(r, 3000)
+    for((v, xs) <- List((a, x), (b, y), (b.concat(a).slice(7, 150000), (y ++ x).slice(7, 150000)), (Vector.of[Any](), Nil))) {
+      val ints = xs.map(_.asInstanceOf[Int])
+      val m = v.map[Any](e => e.asInstanceOf[Int] * 2)
+      wrap(m, ints.map(_ * 2)).append(Range(0, 50)).dropLeft(m.size() / 2)
+      def shape(s: Vector.Stats) = (s.left_depth, s.middle_height, s.right_depth, s.nodes, s.leaves)
+      assertEquals(shape(m.stats()), shape(v.stats()))
+      wrap(v.filter(e => e.asInstanceOf[Int] % 3 == 0), xs.filter(_.asInstanceOf[Int] % 3 == 0)).prepend(Range(0, 50))
+      wrap(v.flatMap[Any](e => java.util.List.of[Any](e, -1)), xs.flatMap(e => List(e, -1)))
+      assertEquals(v.reduce(0, (p: Any, q: Any) => (p.asInstanceOf[Int] + q.asInstanceOf[Int]): Any), ints.sum)
+      assertEquals(v.foldLeft[List[Any]](Nil, (l, e) => e :: l), xs.reverse.toList)
+    }
+    wrap(a, x)
+  }
+
+  test("lazyMap") {
+    val r = new Random(21)
+    val (a, x) = random(r, 100000)
+    val (b, y) = random(r, 3000)
+    for((v, xs) <- List((a, x), (b.concat(a).slice(5, 90000), (y ++ x).slice(5, 90000)), (Vector.of[Any](), Nil))) {
+      var calls = 0
+      val view = v.lazyMap[Any] { e => calls += 1; e.asInstanceOf[Int] + 1 }
+      assertEquals(calls, 0)
+      for(i <- List(0, xs.size / 2, xs.size - 1) if xs.nonEmpty) {
+        assertEquals(view.get(i), xs(i).asInstanceOf[Int] + 1)
+        assertEquals(view.get(i), xs(i).asInstanceOf[Int] + 1)
+      }
+      assert(calls <= 3 * Vector.branchingFactor() && view.mappedLeaves() <= 3)
+      val expected = xs.map(_.asInstanceOf[Int] + 1)
+      assertEquals(view.iterator().asScala.toList, expected.toList)
+      val mapped = calls
+      assertEquals(mapped, xs.size)
+      val w = view.force()
+      assertEquals(calls, mapped)
+      wrap(w, expected).append(Range(0, 40)).dropLeft(w.size() / 2)
+      assertEquals(w, v.map[Any](e => e.asInstanceOf[Int] + 1))
+      assert(xs.isEmpty || w.sharedBytes(view.force()) > w.stats().bytes * 9 / 10)     // the leaves
+    }
+    intercept[IndexOutOfBoundsException] { a.lazyMap[Any](e => e).get(100000) }
+  }
+
+  test("fill + tabulate") {
+    val r = new Random(22)
+    for(n <- List(0, 1, 31, 32, 33, 64, 65, 1000, 1024, 1025, 32 * 32 * 32 + 7, 1000000)) {
+      val v = Vector.fill[Any](n, 0)
+      assertEquals(v, Vector.from(java.util.Collections.nCopies[Any](n, 0)))
+      assertEquals(Vector.tabulate[Any](n, i => i), Vector.from(Range(0, n).map(i => i: Any).asJava))
+      assert(v.stats().bytes < 2000 * (v.stats().left_depth + v.stats().right_depth + 1), (n, v.stats()))
+      if(n > 0) {
+        var w = v
+        var xs = scala.collection.mutable.ArrayBuffer.fill[Any](n)(0)
+        for(k <- Range(0, 100)) {
+          val i = r.nextInt(n)
+          w = w.update(i, k)
+          xs(i) = k
+        }
+        assertEquals(v, Vector.fill[Any](n, 0))
+        if(n <= 1000) { wrap(w, xs).append(Range(0, 40)).dropLeft(40).prepend(Range(0, 40)) }
+        else { assertEquals(w.toList.asScala, xs) }
+      }
+    }
+    val t = Vector.fill[Any](100000, "x").asTransient().update(5, "y").update(99999, "z").persistent()
+    assertEquals((t.get(5), t.get(37), t.get(99967), t.get(99999)), ("y", "x", "x", "z"))
+    intercept[IllegalArgumentException] { Vector.fill[Any](-1, 0) }
+  }
+
+  test("equals + hashCode") {
+    val r = new Random(17)
+    val (a, x) = random(r, 100000)
+    val (b, y) = random(r, 5000)
+    val c = b.concat(a).slice(13, 90000)
+    val z = (y ++ x).slice(13, 90000)
+    for((v, xs) <- List((a, x), (b, y), (c, z), (Vector.of[Any](), Nil))) {
+      val list = xs.toList.asJava
+      val copy = Vector.from(list)
+      assertEquals(v, copy)
+      assertEquals(copy, v)
+      assertEquals(v.hashCode, list.hashCode)
+      assertEquals(copy.hashCode, list.hashCode)
+      if(v.size() > 0) {
+        for(i <- List(0, v.size() / 3, v.size() - 1)) {
+          val w = v.update(i, "x")
+          assert(w != v && v != w && w != copy && copy != w)
+          assertEquals(w.hashCode, { val l = new java.util.ArrayList[Any](list); l.set(i, "x"); l.hashCode })
+          assertEquals(w.update(i, xs(i)), v)
+          assertEquals(v.removeAt(i).insert(i, xs(i)), copy)
+        }
+        assertEquals(v.pop_left().push_left(xs.head), v)
+        assertEquals(v.drop(1).push_left(null), copy.update(0, null))
+        assert(v.drop(1) != v.dropRight(1) || xs.forall(_ == xs.head))
+      }
+    }
+    assert(a != c && Vector.of[Any](1) != java.util.List.of(1))
+    assertEquals(Vector.fill(100000, "a").hashCode, java.util.Collections.nCopies(100000, "a").hashCode)
+  }
+
+  test("diff") {
+    val r = new Random(19)
+    def check(before: Vector[Any], after: Vector[Any]): Int = {
+      var v = before
+      var changes = 0
+      var last = -1
+      Vector.diff(before, after, new Vector.DiffConsumer[Any] {
+        def removed(left: Int, right: Int): Unit = { v = v.drop(left).dropRight(right) }
+        def added(left: Vector[Any], right: Vector[Any]): Unit = { v = left.concat(v).concat(right) }
+        def changed(index: Int, x: Any, y: Any): Unit = {
+          assert(index > last && v.get(index) == x && x != y)
+          last = index
+          changes += 1
+          v = v.update(index, y)
+        }
+      })
+      assertEquals(v, after)
+      changes
+    }
+    var v = random(r, 20000)._1
+    for(k <- Range(0, 300)) {
+      var w = v
+      var updates = 0
+      for(_ <- Range(0, r.nextInt(100))) {
+        r.nextInt(6) match {
+          case 0 => w = w.push_left(-k); updates += 1     // replaces a popped element, in the worst case
+          case 1 => w = w.push_right(-k); updates += 1
+          case 2 => if(w.size() > 0) { w = w.pop_left() }
+          case 3 => if(w.size() > 0) { w = w.pop_right() }
+          case _ => if(w.size() > 0) { w = w.update(r.nextInt(w.size()), -k); updates += 1 }
+        }
+      }
+      if(k % 50 == 25) { w = w.slice(100, w.size()).concat(w.take(100)) }
+      val changes = check(v, w)
+      if(k % 50 != 25) { assert(changes <= updates, (k, changes, updates)) }
+      check(w, v)
+      v = w
+    }
+    check(Vector.of[Any](1, 2, 3), Vector.of[Any](4, 2))
+    assertEquals(check(Vector.of[Any](), v), 0)
+    assertEquals(check(v, Vector.of[Any]()), 0)
+  }
+
+  test("stats + sharedBytes") {
+    val v = Vector.from(Range(0, 100000).map(i => i: Any).asJava)
+    val s = v.stats()
+    val b = Vector.branchingFactor()
+    val depth = Iterator.from(1).find(d => math.pow(b, d) >= 50000 / b * b).get     // 4 for 32-way tries
+    assertEquals((s.left_depth, s.middle_height, s.right_depth), (depth, -1, depth))
+    assertEquals(s.leaves * b + s.left_extra + s.right_extra, 100000)
+    assertEquals(s.fill, 1.0)
+    assert(s.bytes > 4L * 100000 && s.bytes < (4 + 32.0 / b) * 100000, s)     // 4 bytes per element, plus headers
+    assertEquals(v.sharedBytes(v), s.bytes - 32 - 2 * 32)
+    val w = v.update(50000, "x").push_right("y")
+    assert(v.sharedBytes(w) > s.bytes * 9 / 10)
+    assert(v.sharedBytes(w) < v.sharedBytes(v))
+    assertEquals(v.sharedBytes(Vector.from(Range(0, 100000).map(i => i: Any).asJava)), 0L)
+    val c = v.slice(10, 5000).concat(v)
+    assert(c.stats().middle_height >= 0)
+    assert(c.stats().fill > 0.9 && c.stats().fill <= 1.0)
+    assertEquals(Vector.empty.stats().nodes, 0)
+  }
+
+  test("instrumentation is disabled by default") {
+    assert(!Instrumentation.enabled())
+    Instrumentation.reset()
+    random(new Random(24), 5000)._1.pop_left().update(10, "x")
+    assertEquals((Instrumentation.operations(), Instrumentation.arrays(), Instrumentation.bytes()), (0L, 0L, 0L))
+  }
+
+  test("bounded work per push + pop") {
+    // rebalancing only ever copies `O(1)` nodes per level, so every operation allocates `O(log n)` new arrays
+    def check(w: Vector[Any], v: Vector[Any], k: Int): Unit = {
+      val s = w.stats()
+      val depth = math.max(math.max(s.left_depth, s.right_depth), s.middle_height + 1)
+      assert(s.bytes - w.sharedBytes(v) <= (12 * Vector.branchingFactor() + 16) * (depth + 1), (k, s))
+    }
+    val r = new Random(15)
+    var v = Vector.of[Any]()
+    for(k <- Range(0, 24000)) {
+      val push = v.size() == 0 || r.nextInt(10) < (if((k / 6000) % 2 == 0) 8 else 2)
+      val w = (push, r.nextBoolean()) match {
+        case (true, true) => v.push_left(k)
+        case (true, false) => v.push_right(k)
+        case (false, true) => v.pop_left()
+        case (false, false) => v.pop_right()
+      }
+      check(w, v, k)
+      v = if(k % 3000 == 1500) w.slice(10, w.size()).concat(w.take(10)) else w
+    }
+    // pops that empty the halves into a relaxed middle, then take the leaves of the middle and move the rest of the
+    // other half into it
+    v = Range(0, 300).foldLeft(v)((v, i) => v.concat(Vector.from(Range(0, 1 + i * 37 % 500).map(j => j: Any).asJava)))
+    assert(v.stats().middle_height > 0)
+    for(k <- Range(0, v.size())) {
+      val w = if(r.nextInt(4) == 0) v.pop_left() else v.pop_right()
+      check(w, v, k)
+      v = w
+    }
+  }
+
   test("empty") {
     intercept[IllegalStateException] {
       Vector.empty.pop_left()
@@ -118,4 +554,312 @@ class TestVector extends munit.FunSuite {
     }
     assertEquals(v.toList.asScala, r.toBuffer[Any])
   }
+
+  test("update after prepend") {
+    val e = Vector.empty.asInstanceOf[Vector[Any]]
+    var v = Range(0, 1200).foldLeft(e)((v, i) => v.push_left(i))
+    for(i <- Range(0, v.size())) {
+      v = v.update(i, -i)
+    }
+    assertEquals(v.toList.asScala, Range(0, 1200).map(-_).toBuffer[Any])
+  }
+}
+
+class TestTransient extends munit.FunSuite {
+  def empty: Vector[Any] = Vector.empty.asInstanceOf[Vector[Any]]
+
+  def mutate(t: Vector.Transient[Any], b: scala.collection.mutable.ArrayBuffer[Any], ops: Int, push: Int): Unit = {
+    val random = new Random(ops + push)
+    for(i <- Range(0, ops)) {
+      random.nextInt(10) match {
+        case n if n < push =>
+          if(random.nextBoolean()) { t.push_right(i); b.append(i) } else { t.push_left(i); b.prepend(i) }
+        case n if n < 9 =>
+          if(b.nonEmpty) {
+            if(random.nextBoolean()) { t.pop_right(); b.remove(b.length - 1) } else { t.pop_left(); b.remove(0) }
+          }
+        case _ =>
+          if(b.nonEmpty) {
+            val j = random.nextInt(b.length)
+            t.update(j, -i)
+            b(j) = -i
+          }
+      }
+      assertEquals(t.size(), b.length)
+    }
+    for(j <- b.indices) { assertEquals(t.get(j), b(j)) }
+  }
+
+  test("transient") {
+    val v = Range(0, 1000).foldLeft(empty)((v, i) => v.push_right(i))
+    val t = v.asTransient()
+    val b = v.toList.asScala.to(scala.collection.mutable.ArrayBuffer)
+    mutate(t, b, 20000, 6)
+    mutate(t, b, 20000, 3)
+    mutate(t, b, 20000, 7)
+    val w = t.persistent()
+    assertEquals(w.toList.asScala, b)
+    assertEquals(v.toList.asScala, Range(0, 1000).toBuffer[Any])
+    intercept[IllegalStateException] { t.push_right(0) }
+  }
+
+  test("transient of concatenated vectors") {
+    val xs = Range(0, 3000).map(i => i: Any)
+    val t = Vector.from(xs.asJava).concat(Vector.from(xs.asJava)).asTransient()
+    val b = (xs ++ xs).to(scala.collection.mutable.ArrayBuffer)
+    mutate(t, b, 20000, 4)
+    assertEquals(t.persistent().toList.asScala, b)
+  }
+
+  test("transient from empty") {
+    val t = empty.asTransient()
+    for(i <- Range(0, 5000)) { t.push_left(i) }
+    for(i <- Range(0, 5000)) { t.update(i, i) }
+    for(_ <- Range(0, 4990)) { t.pop_right() }
+    assertEquals(t.persistent().toList.asScala, Range(0, 10).toBuffer[Any])
+  }
+
+  test("clustered updates") {
+    val r = new Random(11)
+    val xs = Range(0, 30000).map(i => i: Any)
+    val v = Vector.from(xs.asJava)
+    for((w, x) <- List((v, xs), (v.slice(0, 3000).concat(v), xs.take(3000) ++ xs))) {
+      val t = w.asTransient()
+      val expected = x.to(scala.collection.mutable.ArrayBuffer)
+      var i = r.nextInt(x.length)
+      for(n <- Range(0, 20000)) {
+        i = if(r.nextInt(10) == 0) r.nextInt(expected.length) else i + r.nextInt(3) - 1
+        i = math.max(0, math.min(expected.length - 1, i))
+        r.nextInt(20) match {
+          case 0 => t.push_left(n); expected.prepend(n); i += 1
+          case 1 if expected.length > 1 => t.pop_left(); expected.remove(0); i = math.max(0, i - 1)
+          case 2 => for(j <- Range(0, 40)) { t.push_left(j) }; expected.prependAll(Range(0, 40).reverse); i += 40
+          case _ => t.update(i, n); expected(i) = n
+        }
+        assertEquals(t.get(i), expected(i))
+      }
+      assertEquals(t.persistent().toList.asScala, expected)
+      assertEquals(w.toList.asScala, x.toBuffer)
+    }
+  }
+}
+
+class TestPrimitiveVector extends munit.FunSuite {
+  test("IntVector") {
+    val r = new Random(7)
+    var v = IntVector.empty
+    val b = scala.collection.mutable.ArrayBuffer[Int]()
+    for(i <- Range(0, 20000)) {
+      r.nextInt(10) match {
+        case 0 | 1 | 2 => v = v.push_left(i); b.prepend(i)
+        case 3 if b.nonEmpty => v = v.pop_left(); b.remove(0)
+        case 4 if b.nonEmpty => v = v.pop_right(); b.remove(b.length - 1)
+        case 5 if b.nonEmpty => val j = r.nextInt(b.length); v = v.update(j, -i); b(j) = -i
+        case _ => v = v.push_right(i); b.append(i)
+      }
+    }
+    assertEquals(v.size(), b.length)
+    assertEquals(v.toArray.toSeq, b.toSeq)
+    for(j <- b.indices) { assertEquals(v.get(j), b(j)) }
+    val it = v.iterator()
+    for(x <- b) { assertEquals(it.nextInt(), x) }
+    assert(!it.hasNext)
+    assertEquals(IntVector.of(b.toSeq: _*).toArray.toSeq, b.toSeq)
+    while(v.size() > 0) { v = v.pop_left() }
+    intercept[IllegalStateException] { v.pop_right() }
+  }
+
+  test("LongVector + DoubleVector") {
+    var l = LongVector.of(Range(0, 100).map(_.toLong): _*)
+    var d = DoubleVector.empty
+    for(i <- Range(0, 3000)) {
+      l = l.push_left(-i.toLong)
+      d = if(i % 2 == 0) d.push_right(i / 2.0) else d.push_left(-i / 2.0)
+    }
+    assertEquals(l.toArray.toSeq, (Range(0, 3000).reverse.map(-_.toLong) ++ Range(0, 100).map(_.toLong)).toSeq)
+    assertEquals(l.pop_left().pop_right().get(0), -2998L)
+    assertEquals(d.size(), 3000)
+    assertEquals(d.get(0), -2999 / 2.0)
+    assertEquals(d.get(2999), 2998 / 2.0)
+  }
+}
+
+class TestAggregateVector extends munit.FunSuite {
+  test("sum + min + order") {
+    val r = new Random(23)
+    var sum = AggregateVector.empty[Int, Long](0L, _.toLong, _ + _)
+    var min = AggregateVector.empty[Int, Int](Int.MaxValue, x => x, math.min)
+    // the first and the last element, which checks the order of the aggregates
+    var ends = AggregateVector.empty[Int, (Int, Int)](
+      (0, 0), x => (x, x), (a, b) => if(a == (0, 0)) b else if(b == (0, 0)) a else (a._1, b._2)
+    )
+    val b = scala.collection.mutable.ArrayBuffer[Int]()
+    for(i <- Range(1, 60000)) {
+      val op = r.nextInt(20) match {
+        case k if k < 4 => b.prepend(i); (v: AggregateVector[Int, _]) => v.push_left(i)
+        case 4 | 5 if b.nonEmpty => b.remove(0); (v: AggregateVector[Int, _]) => v.pop_left()
+        case 6 if b.nonEmpty => b.remove(b.length - 1); (v: AggregateVector[Int, _]) => v.pop_right()
+        case 7 if b.nonEmpty => val j = r.nextInt(b.length); b(j) = -i; (v: AggregateVector[Int, _]) => v.update(j, -i)
+        case k if k < 13 || i > 40000 && k < 15 => b.append(i); (v: AggregateVector[Int, _]) => v.push_right(i)
+        case _ if b.nonEmpty => b.remove(0); (v: AggregateVector[Int, _]) => v.pop_left()
+        case _ => b.append(i); (v: AggregateVector[Int, _]) => v.push_right(i)
+      }
+      sum = op(sum).asInstanceOf[AggregateVector[Int, Long]]
+      min = op(min).asInstanceOf[AggregateVector[Int, Int]]
+      ends = op(ends).asInstanceOf[AggregateVector[Int, (Int, Int)]]
+      if(i % 97 == 0) {
+        assertEquals(sum.size(), b.length)
+        assertEquals(sum.aggregate(), b.map(_.toLong).sum)
+        for(_ <- Range(0, 5)) {
+          val from = r.nextInt(b.length + 1)
+          val to = from + r.nextInt(b.length - from + 1)
+          val slice = b.slice(from, to)
+          assertEquals(sum.aggregate(from, to), slice.map(_.toLong).sum)
+          assertEquals(min.aggregate(from, to), if(slice.isEmpty) Int.MaxValue else slice.min)
+          assertEquals(ends.aggregate(from, to), if(slice.isEmpty) (0, 0) else (slice.head, slice.last))
+        }
+      }
+    }
+    assertEquals(sum.elements().toList.asScala, b.toBuffer)
+    while(sum.size() > 0) {
+      sum = if(sum.size() % 2 == 0) sum.pop_right() else sum.pop_left()
+      if(b.length % 2 == 0) b.remove(b.length - 1) else b.remove(0)
+      if(b.length % 500 == 0) { assertEquals(sum.aggregate(b.length / 3, b.length), b.drop(b.length / 3).map(_.toLong).sum) }
+    }
+    assertEquals(sum.aggregate(), 0L)
+    intercept[IllegalStateException] { sum.pop_left() }
+    intercept[IndexOutOfBoundsException] { min.aggregate(0, min.size() + 1) }
+  }
+}
+
+class TestMappedVector extends munit.FunSuite {
+  def file(): java.nio.file.Path = {
+    val path = java.nio.file.Files.createTempFile("vector", ".snapshot")
+    path.toFile.deleteOnExit()
+    path
+  }
+
+  test("primitive snapshots") {
+    val xs = Range(0, 10000).map(i => i * 7 - 300)
+    val ints = file()
+    MappedVector.write(ints, IntVector.of(xs: _*).push_left(-1))
+    val m = MappedVector.openInts(ints)
+    assertEquals(m.size(), 10001)
+    assertEquals(m.getInt(0), -1)
+    for(i <- xs.indices) { assertEquals(m.getInt(i + 1), xs(i)) }
+    val it = m.intIterator()
+    assertEquals((-1 +: xs).map(_ => it.nextInt()), -1 +: xs)
+    assertEquals(m.asScala.toList.take(3), List[Integer](-1, -300, -293))
+    intercept[IndexOutOfBoundsException] { m.getInt(10001) }
+    intercept[UnsupportedOperationException] { m.getLong(0) }
+    intercept[java.io.IOException] { MappedVector.openLongs(ints) }
+
+    val longs = file()
+    MappedVector.write(longs, LongVector.of(xs.map(_ * 1000000000000L): _*))
+    assertEquals(MappedVector.openLongs(longs).asScala.toList, xs.map(x => Long.box(x * 1000000000000L)).toList)
+    val doubles = file()
+    MappedVector.write(doubles, DoubleVector.empty)
+    assertEquals(MappedVector.openDoubles(doubles).size(), 0)
+  }
+
+  test("serialized snapshots") {
+    val xs = Range(0, 5000).map(i => "x" * (i % 70) + i + "é")
+    val v = Vector.from(xs.asJava).concat(Vector.from(xs.take(100).asJava)).push_left("")
+    val path = file()
+    MappedVector.write(path, v, MappedVector.UTF8)
+    val m = MappedVector.open(path, MappedVector.UTF8)
+    assertEquals(m.size(), v.size())
+    for(i <- Range(0, v.size())) { assertEquals(m.get(i), v.get(i)) }
+    assertEquals(m.asScala.toList, v.toList.asScala.toList)
+    intercept[java.io.IOException] { MappedVector.openInts(path) }
+
+    val failing = new MappedVector.Codec[String] {      // fails after some of the leaf area was written
+      def encode(e: String): Array[Byte] = if(e == xs(4000)) throw new IllegalStateException(e) else MappedVector.UTF8.encode(e)
+      def decode(bytes: Array[Byte]): String = MappedVector.UTF8.decode(bytes)
+    }
+    intercept[IllegalStateException] { MappedVector.write(path, v, failing) }
+    intercept[java.io.IOException] { MappedVector.open(path, MappedVector.UTF8) }
+  }
+
+  test("DeltaWriter + DeltaReader") {
+    val r = new Random(12)
+    val out = new java.io.ByteArrayOutputStream()
+    val writer = new Vector.DeltaWriter[String](out, MappedVector.UTF8)
+    var v = Vector.from(Range(0, 50000).map(_.toString).asJava)
+    val versions = scala.collection.mutable.ArrayBuffer[Vector[String]]()
+    val sizes = scala.collection.mutable.ArrayBuffer[Int]()
+    for(i <- Range(0, 30)) {
+      v = r.nextInt(6) match {
+        case 0 => v.push_left(null).push_right(s"r$i")
+        case 1 => v.concat(v.slice(1000, 3000))
+        case 2 => v.pop_left().drop(100)
+        case _ => v.updateAll(Array.fill(10)(r.nextInt(v.size())), Array.fill(10)(s"u$i"))
+      }
+      val before = out.size()
+      writer.write(v)
+      versions += v
+      sizes += out.size() - before
+    }
+    assert(sizes.tail.max < sizes.head / 20, sizes)
+    val reader = new Vector.DeltaReader[String](new java.io.ByteArrayInputStream(out.toByteArray), MappedVector.UTF8)
+    for(w <- versions) {
+      val read = reader.read()
+      assertEquals(read.toList, w.toList)
+      assertEquals(read.pop_left().push_right("x").push_left("y").toList.asScala.toList, ("y" :: w.toList.asScala.toList.tail) :+ "x")
+    }
+    intercept[java.io.EOFException] { reader.read() }
+    val bytes = out.toByteArray
+    bytes(4) = (bytes(4) + 1).toByte        // the shift of the writer
+    intercept[java.io.IOException] {
+      new Vector.DeltaReader[String](new java.io.ByteArrayInputStream(bytes), MappedVector.UTF8).read()
+    }
+  }
+}
+
+class TestConcurrentVectorDeque extends munit.FunSuite {
+  test("producers + consumers") {
+    val q = new ConcurrentVectorDeque[(Int, Int)]()
+    val n = 20000
+    val popped = java.util.concurrent.ConcurrentHashMap.newKeySet[(Int, Int)]()
+    // failed assertions of the threads are rethrown here, and the other threads stop waiting for elements
+    val failures = new java.util.concurrent.ConcurrentLinkedQueue[Throwable]()
+    def thread(body: => Unit): Thread = {
+      val t = new Thread(() => try body catch { case e: Throwable => failures.add(e) })
+      t.setDaemon(true)
+      t
+    }
+    val producers = Range(0, 4).map(p => thread {
+      for(i <- Range(0, n)) { if(p % 2 == 0) q.push_right((p, i)) else q.push_left((p, i)) }
+    })
+    val consumers = Range(0, 4).map(c => thread {
+      val last = scala.collection.mutable.Map[Int, Int]()
+      var count = 0
+      while(count < n && failures.isEmpty) {
+        val e = if(c % 2 == 0) q.pop_left() else q.pop_right()
+        if(e != null) {
+          count += 1
+          assert(popped.add(e))
+          // elements of one producer leave from the other end in the order in which they were pushed
+          if((c + e._1) % 2 == 0) { assert(last.getOrElse(e._1, -1) < e._2); last(e._1) = e._2 }
+        }
+      }
+    })
+    (consumers ++ producers).foreach(_.start())     // so that the consumers also pop from an empty deque
+    (consumers ++ producers).foreach(_.join(60000))
+    if(!failures.isEmpty) { throw failures.peek() }
+    assert((consumers ++ producers).forall(!_.isAlive), "timed out")
+    assertEquals(popped.size(), 4 * n)
+    assertEquals(q.size(), 0)
+    assertEquals(q.pop_left(), null)
+    assertEquals(q.operations(), 8L * n)     // pops that found the deque empty didn't take effect
+  }
+
+  test("snapshot") {
+    val q = new ConcurrentVectorDeque[Any](Vector.of[Any](1, 2, 3))
+    val s = q.snapshot()
+    q.push_left(0)
+    assertEquals(q.pop_right(), 3)
+    assertEquals(q.snapshot().toList, java.util.List.of[Any](0, 1, 2))
+    assertEquals(s.toList, java.util.List.of[Any](1, 2, 3))
+  }
 }